@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#run the order flow benchmark in memory
+java -cp $DIR/../classes CafeBench 4 10
+
+# then against the database, only when BENCH_DB names a scratch database:
+# the bench adds orders and claims waiting kitchen items, so never point it
+# at the cafe's own data
+if [ -n "$BENCH_DB" ]; then
+   java -Dbench.scratch=$BENCH_DB -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar CafeBench 4 10 $BENCH_DB $PGPORT $USER
+fi
@@ -0,0 +1,17 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# export the orders placed since the last run to column files, e.g.
+#   export_orders.sh ~/cafe-export --threads 4
+# pass --full to export everything again; set PGPORT to a replica's port
+# to keep the export off the primary. Orders from the last --settle seconds
+# (300 by default) wait for the next run, in case lower ids still commit
+OUT=${1:-$DIR/../../export}
+shift
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderExporter $USER"_DB" $PGPORT $USER $OUT $*
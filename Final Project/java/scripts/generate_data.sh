@@ -0,0 +1,28 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# generate a scale test database: pass the sizes on, e.g.
+#   generate_data.sh --users 1000000 --orders 50000000 --seed 7
+# every table is made by its own run, straight into COPY, and the runs
+# agree with each other because they share the options and the seed
+GEN="java -cp $DIR/../classes DataGenerator --base-menu $DIR/../../data/menu.csv $*"
+DB="psql -h localhost -p $PGPORT $USER"_DB
+
+$DB < $DIR/../../sql/src/create_tables.sql
+$GEN --stdout menu | $DB -c "COPY Menu FROM STDIN WITH DELIMITER ';'"
+$GEN --stdout users | $DB -c "COPY Users (login, phoneNum, password, type) FROM STDIN WITH DELIMITER ';'"
+$GEN --stdout favitems | $DB -c "COPY FavItems FROM STDIN WITH DELIMITER ';'"
+$GEN --stdout orders | $DB -c "COPY Orders (orderid, login, paid, timeStampRecieved, total) FROM STDIN WITH DELIMITER ';'"
+$GEN --stdout itemstatus | $DB -c "COPY ItemStatus FROM STDIN WITH DELIMITER ';'"
+$DB -c "SELECT setval('orders_orderid_seq', (SELECT MAX(orderid) FROM Orders))"
+
+# indexes and rankings are cheaper to build once the rows are in
+$DB < $DIR/../../sql/src/create_indexes.sql
+$DB < $DIR/../../sql/src/create_ranking.sql
+$DB -c "ANALYZE"
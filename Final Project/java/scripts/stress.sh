@@ -0,0 +1,16 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#race registers on one order and check its total
+#the test adds an order, so give it the name of a scratch database, never the cafe's own
+if [ -z "$1" ]; then
+   echo "Usage: stress.sh <scratch dbname>"
+   exit 1
+fi
+java -Dstress.scratch=$1 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderStress 8 200 $1 $PGPORT $USER
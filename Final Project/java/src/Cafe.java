@@ -11,18 +11,29 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.math.BigDecimal;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,14 +42,47 @@ import java.util.ArrayList;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every session.
+   private RequestScheduler _scheduler = null;
+
+   // sends reads to the replicas in cafe.replicas, if there are any
+   private ReplicaRouter _router = null;
+
+   // lane the current session's statements are queued on
+   private final ThreadLocal<RequestScheduler.Lane> _lane = new ThreadLocal<RequestScheduler.Lane>();
+
+   // connection of the transaction running on this (worker) thread, if any
+   private static final ThreadLocal<Connection> PINNED = new ThreadLocal<Connection>();
+
+   // where users, menu, orders and item status are kept
+   private CafeStore _store = null;
+
+   // how many ranked items are suggested to a user
+   static final int LIKELY_ITEMS = 5;
+
+   // users listed per page of a user search
+   static final int USER_PAGE = 10;
+
+   // rows fetched per round trip by exports
+   static final int FETCH_SIZE = 1000;
+
+   // ranked items of the logged in user, cached per session: one holder per
+   // session thread, carried onto the threads doing the session's work
+   private final ThreadLocal<AtomicReference<Ranked>> _ranked = new ThreadLocal<AtomicReference<Ranked>>(){
+      protected AtomicReference<Ranked> initialValue(){
+         return new AtomicReference<Ranked>();
+      }
+   };
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // low cardinality columns whose values are interned on read
+   private static final Set<String> SHARED_COLUMNS = new HashSet<String>(
+      Arrays.asList("type", "status", "itemname", "paid"));
+
    /**
     * Creates a new instance of Cafe
     *
@@ -56,8 +100,25 @@ public class Cafe {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // obtain the physical connections; a single terminal needs the fewest
+         // the scheduler takes, one of which reports may use
+         int pool = Integer.getInteger("cafe.pool", RequestScheduler.MIN_POOL);
+         int weight = Integer.getInteger("cafe.weight", 4);
+         int queue = Integer.getInteger("cafe.queue", 64);
+         long budget = Long.getLong("cafe.budget.ms", 2000L);
+         int async = Integer.getInteger("cafe.async.threads", 2);
+         this._scheduler = new RequestScheduler(url, user, passwd, pool, weight, queue, budget, async);
+
+         // read only copies of the database, as host:port,host:port
+         String replicas = System.getProperty("cafe.replicas", "").trim();
+         if (!replicas.isEmpty()){
+            int replicaPool = Integer.getInteger("cafe.replica.pool", pool);
+            long maxLag = Long.getLong("cafe.replica.max.lag", 16L * 1024 * 1024);
+            long check = Long.getLong("cafe.replica.check.ms", 200L);
+            this._router = new ReplicaRouter(url, dbname, user, passwd, replicas, replicaPool,
+                                             weight, queue, budget, maxLag, check);
+         }//end if
+         this._store = new JdbcCafeStore(this);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -71,62 +132,455 @@ public class Cafe {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (final String sql) throws SQLException {
+      return run(sql, updateWork(sql));
+   }//end executeUpdate
+
+   /*
+    * The statement of executeUpdate, for run() and runAsync()
+    **/
+   private static RequestScheduler.Work<Integer> updateWork (final String sql) {
+      return new RequestScheduler.Work<Integer>(){
+         public Integer run(Connection conn) throws SQLException {
+            // creates a statement object
+            Statement stmt = conn.createStatement ();
+
+            // issues the update instruction
+            int rowCount = stmt.executeUpdate (sql);
+
+            // close the instruction
+            stmt.close ();
+            return rowCount;
+         }
+      };
+   }//end updateWork
+
+   /**
+    * Runs work as one transaction on one pooled connection. Query helpers
+    * called from inside the work run on that same connection. The
+    * transaction commits if the work returns and rolls back if it throws.
+    * A transaction started inside another one just joins it.
+    *
+    * @param work the statements to run together
+    * @return what the work returned
+    * @throws java.sql.SQLException when the work or the commit failed
+    */
+   public <T> T runTransaction (final RequestScheduler.Work<T> work) throws SQLException {
+      Connection pinned = PINNED.get();
+      if (pinned != null)
+         return work.run(pinned);
+      final ReplicaRouter.Session session = this._router == null ? null : this._router.session();
+      final AtomicReference<Ranked> ranked = this._ranked.get();
+      final Tracer.Span span = Tracer.begin("transaction");
+      try{
+         return this._scheduler.submit(lane(), new RequestScheduler.Work<T>(){
+            public T run(Connection conn) throws SQLException {
+               PINNED.set(conn);
+               // statements of the work are traced under the caller's span
+               Tracer.Span caller = Tracer.adopt(span);
+               ReplicaRouter.Session callerSession = adoptSession(session);
+               AtomicReference<Ranked> callerRanked = adoptRanked(ranked);
+               try{
+                  return transact(conn, work);
+               }finally{
+                  adoptRanked(callerRanked);
+                  adoptSession(callerSession);
+                  Tracer.adopt(caller);
+                  PINNED.remove();
+               }//end try
+            }
+         });
+      }finally{
+         span.end();
+      }//end try
+   }//end runTransaction
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   private <T> T transact (Connection conn, RequestScheduler.Work<T> work) throws SQLException {
+      conn.setAutoCommit(false);
+      try{
+         T result = work.run(conn);
+         conn.commit();
+         if (this._router != null)
+            this._router.wrote(this._router.session(), conn);
+         return result;
+      }catch (SQLException e){
+         conn.rollback();
+         throw e;
+      }catch (RuntimeException e){
+         conn.rollback();
+         throw e;
+      }finally{
+         conn.setAutoCommit(true);
+      }//end try
+   }//end transact
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   private ReplicaRouter.Session adoptSession (ReplicaRouter.Session session) {
+      return this._router == null ? null : this._router.adopt(session);
+   }//end adoptSession
+
+   /**
+    * Database work handed to async(). It runs its statements through the
+    * query helpers and the store, like code on the session's own thread.
+    */
+   public interface Job<T> {
+      T run() throws SQLException;
+   }//end Job
+
+   /**
+    * Runs a job without waiting for it, on one of the scheduler's async
+    * threads. The job holds no connection of its own: each statement in it
+    * is queued like any other, so its reads can go to a replica, and a
+    * transaction it starts has a connection only while it runs. Inside a
+    * transaction the job just runs, as part of it.
+    *
+    * The job keeps its async thread while its statements run, so it must
+    * not join another future: with every async thread waiting nothing
+    * would finish. Such a join fails at once; chain with then() instead.
+    * A single statement is better sent with the async query helpers,
+    * which hold no thread while it runs.
+    *
+    * @param job the statements to run
+    * @return the future result; callbacks on it run on the scheduler's
+    *         callback threads as the calling session, never on the
+    *         caller's thread
+    */
+   public <T> CafeFuture<T> async (final Job<T> job) {
+      Executor session = sessionExecutor();
+      final CafeFuture<T> future = new CafeFuture<T>(session);
+      if (PINNED.get() != null){
+         try{
+            future.complete(job.run());
+         }catch (SQLException e){
+            future.fail(e);
+         }//end try
+         return future;
+      }//end if
+      try{
+         session.execute(new Runnable(){
+            public void run(){
+               try{
+                  future.complete(job.run());
+               }catch (SQLException e){
+                  future.fail(e);
+               }catch (RuntimeException e){
+                  future.fail(new SQLException(e.toString()));
+               }//end try
+            }
+         });
+      }catch (RejectedExecutionException e){
+         future.fail(new SQLException("Database connections are closed"));
+      }//end try
+      return future;
+   }//end async
+
+   /*
+    * The scheduler's async threads, running whatever is handed to them as
+    * the calling session: on its lane, under its trace span, with its
+    * replica session and its cache. Jobs and the callbacks chained on them
+    * then read the session's own writes.
+    **/
+   private Executor sessionExecutor () {
+      final RequestScheduler.Lane lane = lane();
+      final Tracer.Span parent = Tracer.current();
+      final ReplicaRouter.Session session = this._router == null ? null : this._router.session();
+      final AtomicReference<Ranked> ranked = this._ranked.get();
+      final Executor threads = this._scheduler.callbacks();
+      return new Executor(){
+         public void execute(final Runnable task){
+            threads.execute(new Runnable(){
+               public void run(){
+                  RequestScheduler.Lane callerLane = useLane(lane);
+                  Tracer.Span caller = Tracer.adopt(parent);
+                  ReplicaRouter.Session callerSession = adoptSession(session);
+                  AtomicReference<Ranked> callerRanked = adoptRanked(ranked);
+                  try{
+                     task.run();
+                  }finally{
+                     adoptRanked(callerRanked);
+                     adoptSession(callerSession);
+                     Tracer.adopt(caller);
+                     useLane(callerLane);
+                  }//end try
+               }
+            });
+         }
+      };
+   }//end sessionExecutor
+
+   /**
+    * executeUpdate without waiting for it.
+    *
+    * @param sql the input SQL string
+    * @return the future number of rows changed
+    */
+   public CafeFuture<Integer> executeUpdateAsync (final String sql) {
+      return runAsync(sql, updateWork(sql));
+   }//end executeUpdateAsync
+
+   /**
+    * executeQueryAndReturnResult without waiting for it.
+    *
+    * @param query the input query string
+    * @return the future query result as a list of records
+    */
+   public CafeFuture<List<List<String>>> executeQueryAndReturnResultAsync (final String query) {
+      return runAsync(query, resultWork(query));
+   }//end executeQueryAndReturnResultAsync
+
+   /**
+    * executeQuery without waiting for it.
+    *
+    * @param query the input query string
+    * @return the future number of rows returned
+    */
+   public CafeFuture<Integer> executeQueryAsync (final String query) {
+      return runAsync(query, countWork(query));
+   }//end executeQueryAsync
+
+   /**
+    * Runs the work of one statement on the connection of the current
+    * transaction, or queues it on the session's lane for the next free
+    * pooled connection, of a replica if it is a read and one can take it.
+    * Traced as a child span of the current action.
+    */
+   private <T> T run (String sql, RequestScheduler.Work<T> work) throws SQLException {
+      Tracer.Span span = Tracer.begin("sql").sql(sql);
+      try{
+         T result = route(sql, work);
+         if (result instanceof Integer)
+            span.rows((Integer) result);
+         else if (result instanceof List)
+            span.rows(((List<?>) result).size());
+         return result;
+      }catch (SQLException e){
+         span.error(e.getMessage());
+         throw e;
+      }finally{
+         span.end();
+      }//end try
+   }//end run
+
+   /*
+    * Without replicas everything runs on the primary. With them, reads go
+    * to a replica that has the session's writes, and the primary position
+    * after each write outside a transaction is noted for the session.
+    **/
+   private <T> T route (String sql, final RequestScheduler.Work<T> work) throws SQLException {
+      // inside a transaction: its writes are noted when it commits
+      Connection pinned = PINNED.get();
+      if (pinned != null)
+         return work.run(pinned);
+      if (this._router == null)
+         return this._scheduler.submit(lane(), work);
+
+      final ReplicaRouter.Session session = this._router.session();
+      if (ReplicaRouter.isRead(sql)){
+         RequestScheduler replica = this._router.pick(session);
+         if (replica != null){
+            try{
+               return replica.submit(lane(), work);
+            }catch (SQLException e){
+               // down, lagging into a conflict or too busy: the primary answers;
+               // an error in the statement itself is the caller's
+               if (!this._router.failed(replica, e))
+                  throw e;
+            }//end try
+         }//end if
+         return this._scheduler.submit(lane(), work);
+      }//end if
+      return this._scheduler.submit(lane(), noteWrite(session, work));
+   }//end route
+
+   /*
+    * route() without waiting: the statement is queued with submitAsync and
+    * its outcome handed to a future of the session, so no thread waits
+    * while it runs. Inside a transaction it runs on the transaction's
+    * connection, as part of it.
+    **/
+   private <T> CafeFuture<T> runAsync (final String sql, final RequestScheduler.Work<T> work) {
+      final CafeFuture<T> future = new CafeFuture<T>(sessionExecutor());
+      if (PINNED.get() != null){
+         try{
+            future.complete(run(sql, work));
+         }catch (SQLException e){
+            future.fail(e);
+         }//end try
+         return future;
+      }//end if
+
+      // the span is ended by whichever thread sees the statement finish
+      Tracer.Span caller = Tracer.current();
+      final Tracer.Span span = Tracer.begin("sql").sql(sql);
+      Tracer.adopt(caller);
+      final CafeFuture.Callback<T> done = new CafeFuture.Callback<T>(){
+         public void done(T result, SQLException error){
+            if (error != null)
+               span.error(error.getMessage());
+            else if (result instanceof Integer)
+               span.rows((Integer) result);
+            else if (result instanceof List)
+               span.rows(((List<?>) result).size());
+            span.end();
+            if (error != null)
+               future.fail(error);
+            else
+               future.complete(result);
+         }
+      };
+
+      final RequestScheduler.Lane lane = lane();
+      if (this._router == null){
+         this._scheduler.submitAsync(lane, work).onDone(done);
+         return future;
+      }//end if
+      final ReplicaRouter.Session session = this._router.session();
+      if (!ReplicaRouter.isRead(sql)){
+         this._scheduler.submitAsync(lane, noteWrite(session, work)).onDone(done);
+         return future;
+      }//end if
+      final RequestScheduler replica = this._router.pick(session);
+      if (replica == null){
+         this._scheduler.submitAsync(lane, work).onDone(done);
+         return future;
+      }//end if
+      replica.submitAsync(lane, work).onDone(new CafeFuture.Callback<T>(){
+         public void done(T result, SQLException error){
+            // down, lagging into a conflict or too busy: the primary answers
+            if (error != null && _router.failed(replica, error))
+               _scheduler.submitAsync(lane, work).onDone(done);
+            else
+               done.done(result, error);
+         }
+      });
+      return future;
+   }//end runAsync
+
+   /*
+    * Notes the primary position after a write outside a transaction, so
+    * the session's next reads wait for a replica that has it
+    **/
+   private <T> RequestScheduler.Work<T> noteWrite (final ReplicaRouter.Session session, final RequestScheduler.Work<T> work) {
+      return new RequestScheduler.Work<T>(){
+         public T run(Connection conn) throws SQLException {
+            T result = work.run(conn);
+            _router.wrote(session, conn);
+            return result;
+         }
+      };
+   }//end noteWrite
+
+   /**
+    * Switches the calling session to another lane.
+    *
+    * @param lane BACKGROUND for reports and bulk work, INTERACTIVE otherwise
+    * @return the lane the session was on, to switch back to afterwards
+    */
+   public RequestScheduler.Lane useLane (RequestScheduler.Lane lane) {
+      RequestScheduler.Lane previous = lane();
+      this._lane.set(lane);
+      return previous;
+   }//end useLane
+
+   private RequestScheduler.Lane lane () {
+      RequestScheduler.Lane lane = this._lane.get();
+      return lane == null ? RequestScheduler.Lane.INTERACTIVE : lane;
+   }//end lane
+
+   /**
+    * @return queue and wait statistics of the connection pool
+    */
+   public String schedulerStats () {
+      if (this._router != null)
+         return this._scheduler.stats() + this._router.stats();
+      return this._scheduler.stats();
+   }//end schedulerStats
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out, as a table lined up a page at a time.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (final String query) throws SQLException {
+      return run(query, new RequestScheduler.Work<Integer>(){
+         public Integer run(Connection conn) throws SQLException {
+            // creates a statement object
+            Statement stmt = conn.createStatement ();
+            try{
+               // issues the query instruction and streams the rows to one buffered writer
+               ResultSet rs = stmt.executeQuery (query);
+               return (int) ResultRenderer.render(rs, ResultRenderer.Format.TABLE, ResultRenderer.console());
+            }catch (IOException e){
+               throw new SQLException("Could not print the result: " + e.getMessage());
+            }finally{
+               stmt.close ();
+            }//end try
+         }
+      });
    }//end executeQuery
 
+   /**
+    * Streams the result of a query to a file as CSV or JSON. The rows are
+    * read through a cursor, FETCH_SIZE at a time, so any number of rows
+    * takes the same memory. Runs on the background lane.
+    *
+    * @param query the input query string
+    * @param format CSV or JSON
+    * @param file where to write the rows
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query or write the file
+    */
+   public long exportQuery (final String query, final ResultRenderer.Format format, final String file) throws SQLException {
+      RequestScheduler.Lane previous = useLane(RequestScheduler.Lane.BACKGROUND);
+      Tracer.Span span = Tracer.begin("sql").sql(query);
+      try{
+         // the driver reads whole results into memory, and a cursor only lives in a transaction
+         long rows = runTransaction(new RequestScheduler.Work<Long>(){
+            public Long run(Connection conn) throws SQLException {
+               String fetch = "FETCH FORWARD " + FETCH_SIZE + " FROM cafe_export";
+               Statement stmt = conn.createStatement ();
+               Writer out = null;
+               try{
+                  out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+                  ResultRenderer renderer = new ResultRenderer(format, out);
+                  stmt.execute ("DECLARE cafe_export NO SCROLL CURSOR FOR " + query);
+                  ResultSet rs = stmt.executeQuery (fetch);
+                  renderer.start(rs.getMetaData());
+                  while (renderer.rows(rs) == FETCH_SIZE)
+                     rs = stmt.executeQuery (fetch);
+                  stmt.execute ("CLOSE cafe_export");
+                  return renderer.finish();
+               }catch (IOException e){
+                  throw new SQLException("Could not write " + file + ": " + e.getMessage());
+               }finally{
+                  stmt.close ();
+                  if (out != null){
+                     try{
+                        out.close();
+                     }catch (IOException e){
+                        // ignored.
+                     }//end try
+                  }//end if
+               }//end try
+            }
+         });
+         span.rows(rows);
+         return rows;
+      }catch (SQLException e){
+         span.error(e.getMessage());
+         throw e;
+      }finally{
+         span.end();
+         useLane(previous);
+      }//end try
+   }//end exportQuery
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
@@ -136,34 +590,62 @@ public class Cafe {
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (final String query) throws SQLException {
+      return run(query, resultWork(query));
    }//end executeQueryAndReturnResult
 
+   /*
+    * The query of executeQueryAndReturnResult, for run() and runAsync()
+    **/
+   private static RequestScheduler.Work<List<List<String>>> resultWork (final String query) {
+      return new RequestScheduler.Work<List<List<String>>>(){
+         public List<List<String>> run(Connection conn) throws SQLException {
+            // creates a statement object
+            Statement stmt = conn.createStatement ();
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery (query);
+
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+
+            // iterates through the result set and saves the data returned by the query.
+            boolean[] shared = new boolean[numCol + 1];
+            for (int i=1; i<=numCol; ++i)
+               shared[i] = SHARED_COLUMNS.contains(rsmd.getColumnName(i).toLowerCase());
+            List<List<String>> result  = new ArrayList<List<String>>();
+            while (rs.next()){
+               List<String> record = new ArrayList<String>(numCol);
+               for (int i=1; i<=numCol; ++i)
+                  record.add(compactValue(rs.getString (i), shared[i]));
+               result.add(record);
+            }//end while
+            stmt.close ();
+            return result;
+         }
+      };
+   }//end resultWork
+
+   /**
+    * Trims padding left over from the old char(n) columns and interns
+    * values of columns that only take a handful of distinct values, so
+    * cached rows share one copy of "Customer", "Coffee" and so on.
+    *
+    * @param value the raw column value, may be null
+    * @param shared true if the column has few distinct values
+    * @return the trimmed (and possibly interned) value
+    */
+   private static String compactValue(String value, boolean shared) {
+      if (value == null)
+         return null;
+      value = value.trim();
+      return shared ? value.intern() : value;
+   }//end compactValue
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -172,52 +654,123 @@ public class Cafe {
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
+   public int executeQuery (final String query) throws SQLException {
+      return run(query, countWork(query));
+   }//end executeQuery
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /*
+    * The query of executeQuery, for run() and runAsync()
+    **/
+   private static RequestScheduler.Work<Integer> countWork (final String query) {
+      return new RequestScheduler.Work<Integer>(){
+         public Integer run(Connection conn) throws SQLException {
+            // creates a statement object
+            Statement stmt = conn.createStatement ();
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery (query);
+
+            int rowCount = 0;
+
+            // iterates through the result set and count nuber of results.
+            while (rs.next()){
+               rowCount++;
+            }//end while
+            stmt.close ();
+            return rowCount;
+         }
+      };
+   }//end countWork
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. currval is kept per
+    * connection, so this only answers inside runTransaction, on the
+    * connection of the work that took the value.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.sql.SQLException when failed to execute the query or
+    *         when called outside a transaction
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+      // any other pooled connection has its own currval, or none at all
+      if (PINNED.get() == null)
+         throw new SQLException(String.format("currval of %s is only known inside the transaction that took it", sequence));
+      List<List<String>> result = executeQueryAndReturnResult(String.format("Select currval('%s')", sequence));
+      return result.isEmpty() ? -1 : Integer.parseInt(result.get(0).get(0));
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to fetch the items a user is most likely to order, best first.
+    * The ranking is kept up to date in UserItemRank by triggers, so this is
+    * a single index lookup. The result is cached for the session and only
+    * loaded the first time it is needed, not at log in.
+    *
+    * @param login the user to rank items for
+    * @return records of (itemName, price), at most LIKELY_ITEMS long
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> getLikelyItems(String login) throws SQLException {
+      AtomicReference<Ranked> cache = this._ranked.get();
+      Ranked ranked = cache.get();
+      if (ranked == null || !login.equals(ranked.login)){
+         ranked = new Ranked(login, this._store.likelyItems(login, LIKELY_ITEMS));
+         cache.set(ranked);
+      }//end if
+      return ranked.items;
+   }//end getLikelyItems
+
+   /*
+    * A user's ranked items together with the login they belong to, so the
+    * two are always replaced as one
+    **/
+   private static final class Ranked {
+      final String login;
+      final List<List<String>> items;
+
+      Ranked(String login, List<List<String>> items) {
+         this.login = login;
+         this.items = items;
+      }
+   }//end Ranked
+
+   /*
+    * Makes ranked the calling thread's cache, for work done for a session
+    * on another thread; returns the one to put back afterwards
+    **/
+   private AtomicReference<Ranked> adoptRanked (AtomicReference<Ranked> ranked) {
+      AtomicReference<Ranked> previous = this._ranked.get();
+      this._ranked.set(ranked);
+      return previous;
+   }//end adoptRanked
+
+   /**
+    * @return the store behind this session's users, menu and orders
+    */
+   public CafeStore getStore() {
+      return this._store;
+   }//end getStore
+
+   /**
+    * Drops the cached ranking after orders or favorites change so the next
+    * call to getLikelyItems picks up what the triggers recorded.
+    */
+   public void forgetLikelyItems() {
+      this._ranked.get().set(null);
+   }//end forgetLikelyItems
+
+   /**
+    * Method to close the physical connections if they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      if (this._scheduler != null){
+         this._scheduler.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -239,7 +792,7 @@ public class Cafe {
       Cafe esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver");
          // instantiate the Cafe object and creates a physical
          // connection.
          String dbname = args[0];
@@ -265,9 +818,7 @@ public class Cafe {
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
             if (authorisedUser != null) {
-		 String query = String.format("SELECT type FROM Users WHERE login = '%s'", authorisedUser);
-                 List<List<String>> result = esql.executeQueryAndReturnResult(query);
-                 String userType = result.get(0).get(0);
+                 String userType = esql.getStore().getUserType(authorisedUser);
 
                  boolean keepon1 = true;
                  while(keepon1 == true){
@@ -284,7 +835,7 @@ public class Cafe {
 				System.out.println(".........................");
                                 System.out.println("9. Log Out");
                                 switch (readChoice()){
-                                        case 1: Print_Menu(esql);
+                                        case 1: Print_Menu(esql, authorisedUser);
                                         break;
                                         case 2: searchItemName(esql);
                                         break;
@@ -314,10 +865,11 @@ public class Cafe {
 				System.out.println("5. Add Order");
                                 System.out.println("6. Browse unpaid orders");
                                 System.out.println("7. Update order status");
+                                System.out.println("8. Claim kitchen items");
                                 System.out.println(".........................");
                                 System.out.println("9. Log Out");
                                 switch(readChoice()){
-                                        case 1: Print_Menu(esql);
+                                        case 1: Print_Menu(esql, authorisedUser);
                                         break;
                                         case 2: searchItemName(esql);
                                         break;
@@ -331,13 +883,15 @@ public class Cafe {
                                         break;
                                         case 7: UpdateOrder(esql, authorisedUser, userType);
                                         break;
+                                        case 8: ClaimKitchenItems(esql);
+                                        break;
                                         case 9: keepon1 = false;
                                         break;
                                         default : System.out.println("Error: invalid choice!");
                                         break;
                                 }
                         }
-			else if(userType.equals("Manager ")){
+			else if(userType.equals("Manager")){
 				System.out.println("MAIN MENU");
                                 System.out.println("---------");
                                 System.out.println("1. View Menu");
@@ -348,10 +902,14 @@ public class Cafe {
                                 System.out.println("6. Modify menu");
                                 System.out.println("7. Browse unpaid orders");
                                 System.out.println("8. Update order status");
+                                System.out.println("10. Claim kitchen items");
+                                System.out.println("11. Server statistics");
+                                System.out.println("12. Recent actions traced");
+                                System.out.println("13. Export orders");
                                  System.out.println(".........................");
                                 System.out.println("9. Log Out");
                                 switch(readChoice()){
-                                        case 1: Print_Menu(esql);
+                                        case 1: Print_Menu(esql, authorisedUser);
                                         break;
                                         case 2: searchItemName(esql);
                                         break;
@@ -369,6 +927,14 @@ public class Cafe {
                                         break;
                                         case 9: keepon1 = false;
                                         break;
+                                        case 10: ClaimKitchenItems(esql);
+                                        break;
+                                        case 11: System.out.print(esql.schedulerStats());
+                                        break;
+                                        case 12: System.out.print(Tracer.recent(20));
+                                        break;
+                                        case 13: ExportOrders(esql);
+                                        break;
                                         default : System.out.println("Error: invalid choice!");
                                         break;
                                 }
@@ -424,6 +990,7 @@ public class Cafe {
     * Creates a new user with privided login, passowrd and phoneNum
     **/
    public static void CreateUser(Cafe esql){
+      Tracer.Span span = Tracer.begin("CreateUser");
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
@@ -433,15 +1000,16 @@ public class Cafe {
          String phone = in.readLine();
          
 	    String type="Customer";
-	    String favItems="";
-
-				 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
 
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         if (esql.getStore().createUser(login, password, phone, type))
+            System.out.println ("User successfully created!");
+         else
+            System.out.println ("Login or phone number is already taken");
       }catch(Exception e){
          System.err.println (e.getMessage ());
 	return;
+      }finally{
+         span.end();
       }
    }//end CreateUser
 
@@ -451,41 +1019,96 @@ public class Cafe {
     * @return User login or null is the user does not exist
     **/
    public static String LogIn(Cafe esql){
+      Tracer.Span span = Tracer.begin("LogIn");
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (esql.getStore().checkLogin(login, password))
 		return login;
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
+      }finally{
+         span.end();
       }
    }//end
 
 // Rest of the functions definition go in here
 
+   /*
+    * Replaces the user's favorite items with the comma separated list.
+    * Names that are not on the menu are ignored.
+    **/
+   public static void UpdateFavorites(Cafe esql, String login, String favItems) throws SQLException {
+      List<String> names = new ArrayList<String>();
+      for (String name : favItems.split(",")){
+         name = name.trim();
+         if (!name.isEmpty())
+            names.add(name);
+      }
+      esql.getStore().setFavorites(login, names);
+      esql.forgetLikelyItems();
+      System.out.println("Favorite items updated");
+   }//end UpdateFavorites
+
+   /*
+    * Returns the usual item number typed in place of an item name,
+    * or 0 if the input is not one of the listed numbers
+    **/
+   public static int likelyChoice(String input, int count){
+      try{
+         int pick = Integer.parseInt(input.trim());
+         return (pick >= 1 && pick <= count) ? pick : 0;
+      }catch(NumberFormatException e){
+         return 0;
+      }
+   }//end likelyChoice
+
+   /*
+    * Prints the ranked items as a numbered list so they can be picked by number
+    **/
+   public static void printLikelyItems(List<List<String>> likely){
+      for (int i = 0; i < likely.size(); i++)
+         System.out.println("\t" + (i + 1) + ". " + likely.get(i).get(0) + "\t" + likely.get(i).get(1));
+   }//end printLikelyItems
+
 
 //for all
-public static void Print_Menu(Cafe esql){
+public static void Print_Menu(final Cafe esql, final String authUser){
+	Tracer.Span span = Tracer.begin("Print_Menu");
 	try {
+		//the usual items and the menu are fetched side by side
+		CafeFuture<List<List<String>>> likely = esql.async(new Cafe.Job<List<List<String>>>(){
+			public List<List<String>> run() throws SQLException {
+				return esql.getLikelyItems(authUser);
+			}
+		});
+		//the headers name the columns the query asks for, in its order
+		String[] columns = {"itemname", "type", "price", "description", "imageurl"};
+		CafeFuture<List<List<String>>> menu = esql.executeQueryAndReturnResultAsync("SELECT itemName, type, price, description, imageURL FROM MENU");
+		if (!likely.join().isEmpty()){
+			System.out.println("Your usual items:");
+			printLikelyItems(likely.join());
+		}
 		System.out.println("Menu:"	);
-		String query = "SELECT * FROM MENU";
-		int complete = esql.executeQueryAndPrintResult(query);
+		ResultRenderer.render(columns, menu.join(), ResultRenderer.Format.TABLE, ResultRenderer.console());
 	}catch(Exception e){
 		System.err.println(e.getMessage());
 		return;
+	}finally{
+		span.end();
 	}
 }
 
 //add delete modify menu
 //only for manager
 public static void ModifyMenu(Cafe esql) {
+	RequestScheduler.Lane lane = esql.useLane(RequestScheduler.Lane.BACKGROUND);
+	Tracer.Span span = Tracer.begin("ModifyMenu");
 	try{
 		boolean modify = true;
             while (modify){
@@ -500,23 +1123,19 @@ public static void ModifyMenu(Cafe esql) {
                         System.out.println("Type: ");
                         String itemType = in.readLine();
                         System.out.println("Price: ");
-                        double itemPrice = Double.parseDouble(in.readLine());
+                        BigDecimal itemPrice = new BigDecimal(in.readLine().trim());
                         System.out.println("Description: ");
                         String itemDesc = in.readLine();
                         System.out.println("imageURL: ");
                         String itemImageURL = in.readLine();
 
-                        String addQuery = String.format("INSERT INTO MENU (itemName, type, price, description, imageURL) VALUES ('%s','%s','%f','%s','%s')", newItem, itemType, itemPrice, itemDesc, itemImageURL);
-                        esql.executeUpdate(addQuery);
+                        esql.getStore().addMenuItem(newItem, itemType, itemPrice, itemDesc, itemImageURL);
                         System.out.println("Item successfully added!");
                         break;
                     case 2: //delete item
 			System.out.println("What item do you want to delete?");
                         String deleteItem = in.readLine().toLowerCase();
-			String deleteMenuQuery = String.format("SELECT itemName FROM MENU WHERE LOWER(itemName) = '%s'", deleteItem);
-                        if (esql.executeQueryAndPrintResult(deleteMenuQuery) != 0){
-                            String deleteMenuQuery1 = String.format("DELETE FROM MENU WHERE LOWER(itemName) = '%s'", deleteItem);
-                            esql.executeUpdate(deleteMenuQuery1);
+                        if (esql.getStore().deleteMenuItem(deleteItem)){
                             System.out.println("Item successfully deleted");
                         }else{
                             System.out.println("Item is not in the menu.");
@@ -580,14 +1199,20 @@ public static void ModifyMenu(Cafe esql) {
 	}catch(Exception e){
 		System.err.println(e.getMessage());
 		return;
+	}finally{
+		span.end();
+		esql.useLane(lane);
 	}
 }
 
 //manager and employee are the same: view unpaid orders in last 24 hours
 //customer by itself view 5 most recent order history
 public static void BrowseOrderHistory(Cafe esql, String authUser, String userType) {
+        //staff reports are background work, they must not hold up the registers
+        RequestScheduler.Lane lane = esql.useLane(userType.equals("Customer") ? RequestScheduler.Lane.INTERACTIVE : RequestScheduler.Lane.BACKGROUND);
+        Tracer.Span span = Tracer.begin("BrowseOrderHistory");
         try{
-        	if(userType.equals("Manager ") || userType.equals("Employee")){
+        	if(userType.equals("Manager") || userType.equals("Employee")){
                // String timeQuery = String.format("SELECT CURRENT_TIMESTAMP");
                  //               List<Lists<String>>  currTime = esql.executeQueryAndReturnResult(timeQuery);
                    //             String currTime2 = currTime.get(0).get(0);
@@ -603,11 +1228,44 @@ public static void BrowseOrderHistory(Cafe esql, String authUser, String userTyp
 	}catch(Exception e){
                 System.err.println(e.getMessage());
                 return;
+        }finally{
+                span.end();
+                esql.useLane(lane);
         }
 }
 
+//manager writes orders or their items to a CSV or JSON file
+public static void ExportOrders(Cafe esql){
+	Tracer.Span span = Tracer.begin("ExportOrders");
+	try{
+		System.out.println("1. Unpaid orders of the last 24 hours");
+		System.out.println("2. All orders");
+		System.out.println("3. All ordered items");
+		String query;
+		switch(readChoice()){
+			case 1: query = "SELECT * FROM ORDERS WHERE timeStampRecieved > (NOW()- INTERVAL '24 HOUR') AND paid = false ORDER BY orderid"; break;
+			case 2: query = "SELECT * FROM ORDERS ORDER BY orderid"; break;
+			case 3: query = "SELECT * FROM ITEMSTATUS ORDER BY orderid, itemName"; break;
+			default: System.out.println("Unrecognized choice!"); return;
+		}
+		System.out.println("1. CSV");
+		System.out.println("2. JSON");
+		ResultRenderer.Format format = readChoice() == 2 ? ResultRenderer.Format.JSON : ResultRenderer.Format.CSV;
+		System.out.println("File name: ");
+		String file = in.readLine().trim();
+		long rows = esql.exportQuery(query, format, file);
+		System.out.println(rows + " rows written to " + file);
+	}catch(Exception e){
+		System.err.println(e.getMessage());
+		return;
+	}finally{
+		span.end();
+	}
+}
+
 //for all
  public static void searchItemName(Cafe esql) {
+	Tracer.Span span = Tracer.begin("searchItemName");
 	try{
          	System.out.println("What item do you want to search for?");
             String searchItem = in.readLine().toLowerCase();
@@ -621,12 +1279,15 @@ public static void BrowseOrderHistory(Cafe esql, String authUser, String userTyp
         }catch(Exception e){
                 System.err.println(e.getMessage());
                 return;
+        }finally{
+                span.end();
         }
 
 }
 
 //for all
  public static void searchItemCategory(Cafe esql) {
+	Tracer.Span span = Tracer.begin("searchItemCategory");
 	try{
 		System.out.println("What item Category do you want to search for?");
             	String searchItemCat = in.readLine().toLowerCase();
@@ -639,6 +1300,8 @@ public static void BrowseOrderHistory(Cafe esql, String authUser, String userTyp
         }catch(Exception e){
                 System.err.println(e.getMessage());
                 return;
+        }finally{
+                span.end();
         }
 
 }
@@ -646,9 +1309,10 @@ public static void BrowseOrderHistory(Cafe esql, String authUser, String userTyp
 //customer and employee can only update their user information
 //manager can update any users information
 public static void UpdateProfile(Cafe esql, String authUser, String userType){
+	Tracer.Span span = Tracer.begin("UpdateProfile");
 	try{
 		
-		if(userType.equals("Manager ")){
+		if(userType.equals("Manager")){
                     boolean update = true;
                     while(update){
                         System.out.println("What would you like to modify?");
@@ -674,8 +1338,7 @@ public static void UpdateProfile(Cafe esql, String authUser, String userType){
                                 case 2:
                                        	System.out.println("New Favorite Items: ");
                                        	String newFavItems = in.readLine();
-                                       	String query1 = String.format("UPDATE USERS SET favItems = '%s' WHERE login = '%s'", newFavItems, authUser);
-                                       	esql.executeUpdate(query1);
+                                       	UpdateFavorites(esql, authUser, newFavItems);
                                        	break;
                                 case 3:
                                        	System.out.println("New Phone Number: ");
@@ -693,10 +1356,8 @@ public static void UpdateProfile(Cafe esql, String authUser, String userType){
                                 }
                                 break;
                 	case 2:
-                                System.out.println("User login: ");
-                                String profile = in.readLine().toLowerCase();
-                                String userQuery = String.format("SELECT login FROM USERS WHERE LOWER(login) = '%s'", profile);
-				if (esql.executeQueryAndPrintResult(userQuery) != 0){
+                                String profile = FindUser(esql);
+				if (profile != null){
                                     boolean userUpdate = true;
                                     while(userUpdate){
                                         System.out.println("What would you like to modify?");
@@ -715,8 +1376,7 @@ public static void UpdateProfile(Cafe esql, String authUser, String userType){
                                             	case 2:
                                                 	System.out.println("New Favorite Items: ");
                                                 	String newFavItems = in.readLine();
-                                                	String query4 = String.format("UPDATE USERS SET favItems = '%s' WHERE login = '%s'", newFavItems, profile);
-                                                	esql.executeUpdate(query4);
+                                                	UpdateFavorites(esql, profile, newFavItems);
                                                 	break;
                                             	case 3:
                                                 	System.out.println("New Phone Number: ");
@@ -726,16 +1386,14 @@ public static void UpdateProfile(Cafe esql, String authUser, String userType){
                                                 	break;
                                             	case 4:
                                                 	System.out.println("New type: ");
-                                                	String EMC = in.readLine().toLowerCase();
-                                                	boolean invalid = true;
-                                                	while(invalid){
-                                                    		if (EMC == "customer" || EMC == "manager" || EMC == "employee"){
-                                                        		String query = String.format("UPDATE USERS SET type = '%s' WHERE login = '%s'", EMC, profile);
-                                                        		esql.executeUpdate(query);
-                                                        		invalid=false;
-                                                    		}else{
-                                                        		System.out.println("Invalid type");
-                                                    		}
+                                                	String EMC = in.readLine().trim().toLowerCase();
+                                                	//user_type enum values are capitalized
+                                                	if (EMC.equals("customer") || EMC.equals("manager") || EMC.equals("employee")){
+                                                		EMC = Character.toUpperCase(EMC.charAt(0)) + EMC.substring(1);
+                                                		String query = String.format("UPDATE USERS SET type = '%s' WHERE login = '%s'", EMC, profile);
+                                                		esql.executeUpdate(query);
+                                                	}else{
+                                                		System.out.println("Invalid type");
                                                 	}
                                                 	break;
                                             	case 9:
@@ -777,8 +1435,7 @@ public static void UpdateProfile(Cafe esql, String authUser, String userType){
                             case 2:
                                 System.out.println("New Favorite Items: ");
                                 String newFavItems = in.readLine();
-                                String query1 = String.format("UPDATE USERS SET favItems = '%s' WHERE login = '%s'", newFavItems, authUser);
-                                esql.executeUpdate(query1);
+                                UpdateFavorites(esql, authUser, newFavItems);
                                 break;
                             case 3:
                                 System.out.println("New Phone Number: ");
@@ -800,55 +1457,96 @@ public static void UpdateProfile(Cafe esql, String authUser, String userType){
         }catch(Exception e){
                 System.err.println(e.getMessage());
                 return;
+        }finally{
+                span.end();
         }
 }
 
+//manager looks a user up by part of their login or phone number, a page at a time
+public static String FindUser(Cafe esql) throws Exception {
+	System.out.println("Search users by login or phone: ");
+	String text = in.readLine().trim();
+	if (text.isEmpty()){
+		return null;
+	}
+	String after = null;
+	while (true){
+		List<List<String>> page = esql.getStore().searchUsers(text, after, USER_PAGE);
+		if (page.isEmpty()){
+			System.out.println(after == null ? "No users found" : "No more users");
+			if (after == null){
+				return null;
+			}
+		}
+		for (int i = 0; i < page.size(); i++){
+			List<String> user = page.get(i);
+			System.out.println("\t" + (i + 1) + ". " + user.get(0) + "\t" + user.get(1) + "\t" + user.get(2));
+		}
+		System.out.println("Pick a user by number, n for the next page, blank to cancel: ");
+		String answer = in.readLine().trim();
+		if (answer.equalsIgnoreCase("n")){
+			if (!page.isEmpty()){
+				after = page.get(page.size() - 1).get(0);
+			}
+			continue;
+		}
+		int pick = likelyChoice(answer, page.size());
+		return pick > 0 ? page.get(pick - 1).get(0) : null;
+	}
+}
+
 //only for customer
 public static void PlaceOrder(Cafe esql, String authUser){
+	Tracer.Span span = Tracer.begin("PlaceOrder");
 	try{
-		double Ptotal = 0;
-		boolean done = false;
-		String currTime2 = "";
+		int orderid = esql.getStore().createOrder(authUser);
+		System.out.println("Order number: " + orderid);
 
-		String intQuery = String.format("SELECT MAX(orderid) as maxid FROM ORDERS");
-		List<List<String>>  maxInt = esql.executeQueryAndReturnResult(intQuery);
-
-		int maxInt2 = Integer.parseInt(maxInt.get(0).get(0)) +1;
-
-		 String timeQuery = String.format("SELECT CURRENT_TIMESTAMP");
-                                List<List<String>>  currTime = esql.executeQueryAndReturnResult(timeQuery);
-                                currTime2 = currTime.get(0).get(0);
+		AddItems(esql, authUser, orderid);
+        }catch(Exception e){
+                System.err.println(e.getMessage());
+                return;
+        }finally{
+                span.end();
+        }
+}
 
-		String NewOrder = String.format("INSERT INTO ORDERS (orderid, login,  paid, timeStampRecieved, total) VALUES ('%d', '%s', false, '%s', 0)", maxInt2, authUser, currTime2);
-                esql.executeUpdate(NewOrder);
+//adds items to an unpaid order until the user is done
+public static void AddItems(Cafe esql, String authUser, int orderid) throws Exception {
+		boolean done = false;
 
+		//the user's usual items can be picked by number instead of by name
+		List<List<String>> likely = esql.getLikelyItems(authUser);
+		if (!likely.isEmpty()){
+			System.out.println("Your usual items:");
+			printLikelyItems(likely);
+		}
 
 		while(!done){
     			System.out.println("What would you like to order:");
     			String itemname = in.readLine().toLowerCase();
 
-    			String priceQuery = String.format("SELECT itemName, price from MENU WHERE LOWER(itemName) = '%s' ", itemname);
-			List<List<String>> inList = esql.executeQueryAndReturnResult(priceQuery);
-
-			System.out.println(inList);
-		//	String menuItem = inList.get(0).get(0);
+			List<String> inList;
+			int pick = likelyChoice(itemname, likely.size());
+			if (pick > 0){
+				inList = likely.get(pick - 1);
+			}else{
+				inList = esql.getStore().findMenuItem(itemname);
+			}
 
-   	 		if (inList.isEmpty()){
+   	 		if (inList == null){
         			System.out.println("no such item on the menu");
 	    		}else{
-      			//	String timeQuery = String.format("SELECT CURRENT_TIMESTAMP");
-        		//	List<List<String>>  currTime = esql.executeQueryAndReturnResult(timeQuery);
-	        	//	currTime2 = currTime.get(0).get(0);
+				String menuItem = inList.get(0);
 
-          			//String ItemAdd = String.format("INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, comments) VALUES ('%d', '%s', '%s', false, '')", maxInt2, itemname, currTime2);
-				//esql.executeUpdate(ItemAdd);
-				String menuItem = inList.get(0).get(0);
+				try{
+					//charged at the menu price when the item goes in, not the one listed above
+					BigDecimal total = esql.getStore().addOrderItem(orderid, menuItem);
+					System.out.println(menuItem + " added. Total: " + total);
+				}catch(SQLException e){
+					System.out.println(e.getMessage());
+				}
 
-
-        			List<List<String>>  priceint = esql.executeQueryAndReturnResult(priceQuery);
-	        		double singlePrice = Double.parseDouble(priceint.get(0).get(1));
-      				Ptotal = Ptotal + singlePrice ;
-				System.out.println("Total:" + Ptotal);
 	        		boolean invalid = true;
       				while(invalid){
             				System.out.println("Would you like to add to  your order?");
@@ -862,32 +1560,112 @@ public static void PlaceOrder(Cafe esql, String authUser){
                 				System.out.println("Invalid input");
             				}
         			}
-        			String updateOrder1 = String.format("UPDATE ORDERS SET timeStampRecieved = '%s', total = '%f' WHERE orderid = '%d' ",currTime2, Ptotal, maxInt2);
-				esql.executeUpdate(updateOrder1);
-				System.out.println(itemname);
-				String ItemAdd = String.format("INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, comments) VALUES ('%d', '%s', '%s', false, '')", maxInt2, menuItem, currTime2);
-        	     		esql.executeUpdate(ItemAdd);
-				System.out.println("Order Added");
     			}
 		}
-		//String NewOrder = String.format("INSERT INTO ORDERS (orderid, login,  paid, timeStampRecieved, total) VALUES ('%d', '%s', false, '%s', %f)", maxInt2, authUser, currTime2, Ptotal);
-                //esql.executeUpdate(NewOrder);
+		//the ranking changed once the new items commit
+		esql.forgetLikelyItems();
+}
 
-        }catch(Exception e){
-                System.err.println(e.getMessage());
-                return;
-        }
+//employee and manager take the next items nobody is working on yet
+public static void ClaimKitchenItems(Cafe esql){
+	Tracer.Span span = Tracer.begin("ClaimKitchenItems");
+	try{
+		System.out.println("How many items do you want to take?");
+		int count = Integer.parseInt(in.readLine().trim());
+		List<List<String>> claimed = esql.getStore().claimKitchenItems(count);
+		if (claimed.isEmpty()){
+			System.out.println("No items are waiting");
+		}
+		for (List<String> item : claimed){
+			System.out.println("Order " + item.get(0) + ": " + item.get(1));
+		}
+	}catch(Exception e){
+		System.err.println(e.getMessage());
+		return;
+	}finally{
+		span.end();
+	}
+}
+
+/*
+ * Staff changes to many orders at once: pick orders by id or id range
+ * and/or customer, then mark them paid or set the status of their items.
+ * Each change is one statement on the background lane.
+ **/
+public static void UpdateOrders(Cafe esql){
+	RequestScheduler.Lane lane = esql.useLane(RequestScheduler.Lane.BACKGROUND);
+	Tracer.Span span = Tracer.begin("UpdateOrders");
+	try{
+		System.out.println("Order ID or range (e.g. 120 or 120-180), blank for any:");
+		String range = in.readLine().trim();
+		System.out.println("Customer login, blank for any:");
+		String login = in.readLine().trim();
+		if (range.isEmpty() && login.isEmpty()){
+			System.out.println("Give an order range or a customer");
+			return;
+		}
+		int fromId = 1;
+		int toId = Integer.MAX_VALUE;
+		if (!range.isEmpty()){
+			String[] ends = range.split("-", 2);
+			fromId = Integer.parseInt(ends[0].trim());
+			toId = ends.length > 1 ? Integer.parseInt(ends[1].trim()) : fromId;
+		}
+		String customer = login.isEmpty() ? null : login;
+
+		System.out.println("1. Mark unpaid orders paid");
+		System.out.println("2. Set item status");
+		System.out.println("9. Exit Update Order");
+		switch(readChoice()){
+			case 1:
+				int paid = esql.getStore().markOrdersPaid(fromId, toId, customer);
+				System.out.println(paid + " order(s) changed to paid");
+				break;
+			case 2:
+				System.out.println("Item name, blank for all items:");
+				String item = in.readLine().trim();
+				System.out.println("1. Hasn't started");
+				System.out.println("2. Started");
+				System.out.println("3. Finished");
+				String status;
+				switch(readChoice()){
+					case 1: status = "Hasn't started"; break;
+					case 2: status = "Started"; break;
+					case 3: status = "Finished"; break;
+					default: System.out.println("Unrecognized choice!"); return;
+				}
+				//items only move forward unless staff say to send them back
+				boolean backward = false;
+				if (!status.equals("Finished")){
+					System.out.println("Also move items that are further along back to " + status + "? (yes/no)");
+					backward = in.readLine().trim().equalsIgnoreCase("yes");
+				}
+				int changed = esql.getStore().setItemStatus(fromId, toId, customer, item.isEmpty() ? null : item, status, backward);
+				System.out.println(changed + " item(s) changed to " + status);
+				break;
+			case 9:
+				break;
+			default:
+				System.out.println("Unrecognized choice!");
+				break;
+		}
+	}catch(Exception e){
+		System.err.println(e.getMessage());
+	}finally{
+		span.end();
+		esql.useLane(lane);
+	}
 }
 
 //customer update order of nonpaid order by orderIDID
 //manager and employee update order staus by orderID
 public static void UpdateOrder(Cafe esql, String authUser, String userType){
+	Tracer.Span span = Tracer.begin("UpdateOrder");
 	try{
 		if(userType.equals("Customer")){
            		System.out.println("Which order would you like to update?");
             		int orderNum = Integer.parseInt(in.readLine());
-			String query = String.format("SELECT orderid FROM ORDERS WHERE orderid = '%d' AND login = '%s' AND paid = false" , orderNum, authUser);
-            		if (esql.executeQueryAndPrintResult(query) !=0 ){
+            		if (esql.getStore().isOpenOrder(orderNum, authUser)){
 				boolean updateOrder = true;
                 		while (updateOrder){
                     			System.out.println("What would you like to modify?");
@@ -896,40 +1674,24 @@ public static void UpdateOrder(Cafe esql, String authUser, String userType){
                     			System.out.println("9. Exit Update Order");
                     			switch(readChoice()){
                         			case 1:
-                            				PlaceOrder(esql, authUser);
+                            				AddItems(esql, authUser, orderNum);
                             			break;
                         			case 2:
                             				System.out.println("Which item would you like to delete?");
  		 	                        	String itemDelete = in.readLine().toLowerCase();
-							String orderQuery = String.format("SELECT itemName FROM ITEMSTATUS WHERE orderid = '%d' AND LOWER(itemName) = '%s'" , orderNum, itemDelete);
-                            				if (esql.executeQueryAndPrintResult(orderQuery) !=0 ){
-								String deleteQuery = String.format("DELETE FROM ITEMSTATUS WHERE LOWER(itemName) = '%s' AND orderid = '%d'", itemDelete, orderNum );
-                                				esql.executeUpdate(deleteQuery);
-								//gets the price of item we are deleting
-								String subtractPrice = String.format("Select price FROM MENU WHERE LOWER(itemName) = '%s'", itemDelete);
-                                				List<List<String>> priceTable = esql.executeQueryAndReturnResult(subtractPrice);
-                                				double itemPrice = Double.parseDouble(priceTable.get(0).get(0));
-								
-								//get the price of original total
-								String originalTotal = String.format("Select total FROM ORDERS WHERE orderid = '%d'", orderNum);
-                                                                List<List<String>> priceTable1 = esql.executeQueryAndReturnResult(originalTotal);
-                                                                double ogTotal = Double.parseDouble(priceTable1.get(0).get(0));
-                                                                                                                                                                                                
-								double newPrice = ogTotal - itemPrice;								
-
-								String updateOrderQuery = String.format("UPDATE ORDERS SET total = '%f' WHERE orderid = '%d'", newPrice, orderNum);
-                                				esql.executeUpdate(updateOrderQuery);
-								//String updateOrderQuery1 = String.format("UPDATE ORDERS SET total =0 WHERE orderid = '%d' AND total <0" , orderNum);
-                                                                //esql.executeUpdate(updateOrderQuery1);	
-
-								String timeQuery = String.format("SELECT CURRENT_TIMESTAMP");
-                                				List<List<String>>  currTime = esql.executeQueryAndReturnResult(timeQuery);
-                                				String currTime2 = currTime.get(0).get(0);
-								String updateStatusQuery = String.format("UPDATE ITEMSTATUS SET lastUpdated = '%s'  WHERE orderid = '%d'", currTime2, orderNum);
-                                				esql.executeUpdate(updateOrderQuery);
-                            				}else{
-                                				System.out.println("Item does not exist in your order");
-                            				}
+							//the store deletes the item and takes it off the total together;
+							//the total is changed in place so a concurrent edit is not lost
+							try{
+								BigDecimal newPrice = esql.getStore().removeOrderItem(orderNum, itemDelete);
+								if (newPrice != null){
+									System.out.println("Item deleted. Total: " + newPrice);
+									esql.forgetLikelyItems();
+								}else{
+									System.out.println("Item does not exist in your order");
+								}
+							}catch(SQLException e){
+								System.out.println(e.getMessage());
+							}
                             			break;
                         			case 9:
                             				updateOrder = false;
@@ -939,12 +1701,8 @@ public static void UpdateOrder(Cafe esql, String authUser, String userType){
                 	}else{
                     		System.out.println("Order ID does not exist or is not yours");
                 	}
-            	}else if(userType.equals("Employee") || userType.equals("Manager ")){
-                	System.out.println("Item ID:");
-                	String itemID = in.readLine();
-                	String query = String.format("UPDATE Orders SET paid = true WHERE orderid = '%s'", itemID);
-                	esql.executeUpdate(query);
-                	System.out.println("Order changed to paid by employee");
+            	}else if(userType.equals("Employee") || userType.equals("Manager")){
+                	UpdateOrders(esql);
             	}else {
              		System.out.println("Error: invalid choice!");
             	}
@@ -953,6 +1711,8 @@ public static void UpdateOrder(Cafe esql, String authUser, String userType){
         }catch(Exception e){
                 System.err.println(e.getMessage());
                 return;
+        }finally{
+                span.end();
         }
 }
 
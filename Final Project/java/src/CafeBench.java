@@ -0,0 +1,258 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of the order flow against a CafeStore.
+ *
+ * Every thread runs checkouts: open an order, add items, take one off,
+ * check the total and mark it paid. Some of the adds and removes go to a
+ * few orders shared by all threads, so edits of the same order race each
+ * other; at the end the totals of those orders are checked against the
+ * sum of the changes that succeeded.
+ *
+ * Run against the in-memory store to see what the application itself costs,
+ * or against Postgres to see the same flow with the database in it. Against
+ * Postgres all threads share one Cafe, so they go through its scheduler and
+ * connection pool (-Dcafe.pool=N), and -Dbench.reports=N adds threads
+ * running a heavy report on the background lane next to the checkouts.
+ *
+ * The bench adds orders and claims whatever kitchen items are waiting, so
+ * it only runs against a scratch database, named again in -Dbench.scratch
+ * to confirm. Its customers are those of DataGenerator (user2, user3, ...),
+ * so a database made by generate_data.sh with a thousand or more users
+ * serves.
+ *
+ * Usage: java CafeBench <threads> <seconds> [<dbname> <port> <user>]
+ */
+public class CafeBench {
+
+   // size of the menu the in-memory store is seeded with
+   static final int MENU_ITEMS = 13;
+   static final int USERS = 1000;
+   static final int HOT_ORDERS = 8;
+
+   static final String REPORT = "SELECT login, COUNT(*), SUM(total) FROM Orders GROUP BY login ORDER BY 3 DESC LIMIT 10";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 2 && args.length != 5){
+         System.err.println("Usage: java CafeBench <threads> <seconds> [<dbname> <port> <user>]");
+         return;
+      }//end if
+      int threads = Integer.parseInt(args[0]);
+      final long seconds = Long.parseLong(args[1]);
+
+      final CafeStore[] stores = new CafeStore[threads];
+      Cafe server = null;
+      if (args.length == 2){
+         MemoryCafeStore store = new MemoryCafeStore();
+         seed(store);
+         for (int i = 0; i < threads; i++)
+            stores[i] = store;
+      }else{
+         if (!args[2].equals(System.getProperty("bench.scratch"))){
+            System.err.println("The bench writes to " + args[2] + "; run it against a scratch database only,");
+            System.err.println("and confirm with -Dbench.scratch=" + args[2]);
+            return;
+         }//end if
+         // every thread is a register of the same server process
+         Class.forName("org.postgresql.Driver");
+         server = new Cafe(args[2], args[3], args[4], "");
+         for (int i = 0; i < threads; i++)
+            stores[i] = server.getStore();
+      }//end if
+      int reports = server == null ? 0 : Integer.getInteger("bench.reports", 0);
+
+      List<List<String>> menu = stores[0].getMenu();
+      final int menuSize = menu.size();
+      final String[] items = new String[menuSize];
+      final BigDecimal[] prices = new BigDecimal[menuSize];
+      for (int i = 0; i < menuSize; i++){
+         items[i] = menu.get(i).get(0);
+         prices[i] = new BigDecimal(menu.get(i).get(2));
+      }//end for
+      if (menuSize < 3){
+         System.err.println("The menu needs at least 3 items");
+         return;
+      }//end if
+
+      final int[] hot = new int[HOT_ORDERS];
+      final AtomicLong[] hotCents = new AtomicLong[HOT_ORDERS];
+      for (int i = 0; i < HOT_ORDERS; i++){
+         hot[i] = stores[0].createOrder(customer(i));
+         hotCents[i] = new AtomicLong();
+      }//end for
+
+      final AtomicLong checkouts = new AtomicLong();
+      final AtomicLong calls = new AtomicLong();
+      final AtomicLong conflicts = new AtomicLong();
+      final AtomicLong wrongTotals = new AtomicLong();
+      final AtomicLong busy = new AtomicLong();
+      final AtomicLong reportsRun = new AtomicLong();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch finished = new CountDownLatch(threads + reports);
+      final long[] deadline = new long[1];
+      final long[][] latencies = new long[threads][];
+      final int[] latencyCount = new int[threads];
+
+      for (int t = 0; t < threads; t++){
+         final CafeStore store = stores[t];
+         final Random random = new Random(t);
+         final int me = t;
+         latencies[me] = new long[1024];
+         new Thread(new Runnable(){
+            public void run(){
+               try{
+                  start.await();
+                  while (System.nanoTime() < deadline[0]){
+                     long began = System.nanoTime();
+                     try{
+                        checkout(store, random);
+                     }catch (RequestScheduler.BusyException e){
+                        busy.incrementAndGet();
+                        continue;
+                     }//end try
+                     if (latencyCount[me] == latencies[me].length)
+                        latencies[me] = Arrays.copyOf(latencies[me], latencyCount[me] * 2);
+                     latencies[me][latencyCount[me]++] = System.nanoTime() - began;
+                  }//end while
+               }catch (Exception e){
+                  System.err.println(e.getMessage());
+               }finally{
+                  finished.countDown();
+               }//end try
+            }
+
+            void checkout(CafeStore store, Random random) throws SQLException {
+               long expected = 0;
+               int orderid = store.createOrder(customer(random.nextInt(USERS)));
+               int first = pick(random, menuSize);
+               for (int i = 0; i < 3; i++){
+                  int item = (first + i) % menuSize;
+                  store.addOrderItem(orderid, items[item]);
+                  expected += MemoryCafeStore.toCents(prices[item]);
+               }//end for
+               store.removeOrderItem(orderid, items[first]);
+               expected -= MemoryCafeStore.toCents(prices[first]);
+               if (MemoryCafeStore.toCents(store.getOrderTotal(orderid)) != expected)
+                  wrongTotals.incrementAndGet();
+               store.markOrderPaid(orderid);
+               store.claimKitchenItems(2);
+               calls.addAndGet(8);
+
+               // one edit of an order everybody is editing
+               int h = random.nextInt(HOT_ORDERS);
+               int item = pick(random, menuSize);
+               try{
+                  if (random.nextBoolean()){
+                     store.addOrderItem(hot[h], items[item]);
+                     hotCents[h].addAndGet(MemoryCafeStore.toCents(prices[item]));
+                  }else if (store.removeOrderItem(hot[h], items[item]) != null){
+                     hotCents[h].addAndGet(-MemoryCafeStore.toCents(prices[item]));
+                  }//end if
+               }catch (SQLException e){
+                  // item already in the order
+                  conflicts.incrementAndGet();
+               }//end try
+               calls.incrementAndGet();
+               checkouts.incrementAndGet();
+            }
+         }).start();
+      }//end for
+
+      for (int r = 0; r < reports; r++){
+         final Cafe esql = server;
+         new Thread(new Runnable(){
+            public void run(){
+               esql.useLane(RequestScheduler.Lane.BACKGROUND);
+               try{
+                  start.await();
+                  while (System.nanoTime() < deadline[0]){
+                     try{
+                        esql.executeQuery(REPORT);
+                        reportsRun.incrementAndGet();
+                     }catch (RequestScheduler.BusyException e){
+                        busy.incrementAndGet();
+                     }//end try
+                  }//end while
+               }catch (Exception e){
+                  System.err.println(e.getMessage());
+               }finally{
+                  finished.countDown();
+               }//end try
+            }
+         }).start();
+      }//end for
+
+      long begin = System.nanoTime();
+      deadline[0] = begin + seconds * 1000000000L;
+      start.countDown();
+      finished.await();
+      double elapsed = (System.nanoTime() - begin) / 1e9;
+
+      for (int i = 0; i < HOT_ORDERS; i++){
+         if (MemoryCafeStore.toCents(stores[0].getOrderTotal(hot[i])) != hotCents[i].get())
+            wrongTotals.incrementAndGet();
+         // settled like every other order of the run
+         stores[0].markOrderPaid(hot[i]);
+      }//end for
+
+      int total = 0;
+      for (int t = 0; t < threads; t++)
+         total += latencyCount[t];
+      long[] all = new long[total];
+      for (int t = 0, at = 0; t < threads; at += latencyCount[t], t++)
+         System.arraycopy(latencies[t], 0, all, at, latencyCount[t]);
+      Arrays.sort(all);
+
+      System.out.println(String.format("threads            %d", threads));
+      System.out.println(String.format("checkouts/sec      %.0f", checkouts.get() / elapsed));
+      System.out.println(String.format("store calls/sec    %.0f", calls.get() / elapsed));
+      System.out.println(String.format("checkout p50       %.3f ms", percentile(all, 0.50) / 1e6));
+      System.out.println(String.format("checkout p99       %.3f ms", percentile(all, 0.99) / 1e6));
+      System.out.println(String.format("hot edit conflicts %d", conflicts.get()));
+      System.out.println(String.format("wrong totals       %d", wrongTotals.get()));
+      if (server != null){
+         System.out.println(String.format("reports run        %d", reportsRun.get()));
+         System.out.println(String.format("busy responses     %d", busy.get()));
+         System.out.print(server.schedulerStats());
+         server.cleanup();
+      }//end if
+   }//end main
+
+   static long percentile(long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0;
+      return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+   }//end percentile
+
+   /*
+    * Item popularity is skewed: low numbered items are picked far more often
+    **/
+   static int pick(Random random, int menuSize) {
+      double u = random.nextDouble();
+      return (int) (menuSize * u * u);
+   }//end pick
+
+   /*
+    * The i-th customer, as DataGenerator names them
+    **/
+   static String customer(int i) {
+      return DataGenerator.login(DataGenerator.customer(i));
+   }//end customer
+
+   /*
+    * Fills an empty in-memory store with users and a menu
+    **/
+   static void seed(MemoryCafeStore store) throws SQLException {
+      for (int i = 0; i < USERS; i++)
+         store.createUser(customer(i), "pw" + i, String.valueOf(1000000 + i), "Customer");
+      for (int i = 0; i < MENU_ITEMS; i++)
+         store.addMenuItem("Item " + i, "Food", new BigDecimal("1.99").add(BigDecimal.valueOf(i, 1)), "", "");
+   }//end seed
+
+}//end CafeBench
@@ -0,0 +1,275 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of database work that is still running. A small stand-in for
+ * CompletableFuture, which the Java 7 the cafe builds with does not have.
+ *
+ * Callbacks and the steps chained with then() run on the executor the
+ * future was made with, never on the thread that completed it, so a slow
+ * callback cannot hold a pooled connection. Failures are SQLExceptions,
+ * the same as the blocking helpers throw, and skip the steps after them.
+ */
+public class CafeFuture<T> implements Future<T> {
+
+   /**
+    * Turns the value of one future into the value of the next.
+    */
+   public interface Step<T, R> {
+      R apply(T value) throws SQLException;
+   }//end Step
+
+   /**
+    * Told the outcome of a future: its value, or the error it failed with.
+    */
+   public interface Callback<T> {
+      void done(T value, SQLException error);
+   }//end Callback
+
+   // runs callbacks on the completing thread; only for the futures of
+   // blocking calls, which are joined and never given callbacks
+   static final Executor DIRECT = new Executor(){
+      public void execute(Runnable task){
+         task.run();
+      }
+   };
+
+   // set on the threads callbacks run on. A join there waits for work
+   // that may itself need one of those threads, so it fails instead.
+   private static final ThreadLocal<Boolean> CALLBACK_THREAD = new ThreadLocal<Boolean>();
+
+   private final Executor _executor;
+   private final CountDownLatch _done = new CountDownLatch(1);
+
+   // guarded by this
+   private List<Callback<? super T>> _callbacks = new ArrayList<Callback<? super T>>(2);
+   private T _value;
+   private SQLException _error;
+
+   public CafeFuture(Executor executor) {
+      this._executor = executor;
+   }//end CafeFuture
+
+   /**
+    * @param executor where the callbacks on the future run
+    * @return a future that already has its value
+    */
+   public static <T> CafeFuture<T> completed(T value, Executor executor) {
+      CafeFuture<T> future = new CafeFuture<T>(executor);
+      future.complete(value);
+      return future;
+   }//end completed
+
+   /**
+    * @param executor where the callbacks on the future run
+    * @return a future that already failed
+    */
+   public static <T> CafeFuture<T> failed(SQLException error, Executor executor) {
+      CafeFuture<T> future = new CafeFuture<T>(executor);
+      future.fail(error);
+      return future;
+   }//end failed
+
+   /**
+    * @return false if the future was already done
+    */
+   public boolean complete(T value) {
+      return finish(value, null);
+   }//end complete
+
+   /**
+    * @return false if the future was already done
+    */
+   public boolean fail(SQLException error) {
+      return finish(null, error);
+   }//end fail
+
+   private boolean finish(T value, SQLException error) {
+      List<Callback<? super T>> callbacks;
+      synchronized (this){
+         if (_callbacks == null)
+            return false;
+         _value = value;
+         _error = error;
+         callbacks = _callbacks;
+         _callbacks = null;
+      }//end synchronized
+      _done.countDown();
+      for (Callback<? super T> callback : callbacks)
+         dispatch(callback, value, error);
+      return true;
+   }//end finish
+
+   /**
+    * Calls back once the future is done, right away if it already is.
+    */
+   public void onDone(Callback<? super T> callback) {
+      synchronized (this){
+         if (_callbacks != null){
+            _callbacks.add(callback);
+            return;
+         }//end if
+      }//end synchronized
+      dispatch(callback, _value, _error);
+   }//end onDone
+
+   private void dispatch(final Callback<? super T> callback, final T value, final SQLException error) {
+      _executor.execute(new Runnable(){
+         public void run(){
+            callback.done(value, error);
+         }
+      });
+   }//end dispatch
+
+   /**
+    * @return a future of step applied to this future's value
+    */
+   public <R> CafeFuture<R> then(final Step<? super T, R> step) {
+      final CafeFuture<R> next = new CafeFuture<R>(_executor);
+      onDone(new Callback<T>(){
+         public void done(T value, SQLException error){
+            if (error != null){
+               next.fail(error);
+               return;
+            }//end if
+            try{
+               next.complete(step.apply(value));
+            }catch (SQLException e){
+               next.fail(e);
+            }catch (RuntimeException e){
+               next.fail(new SQLException(e.toString()));
+            }//end try
+         }
+      });
+      return next;
+   }//end then
+
+   /**
+    * @return a future of the future step starts with this future's value,
+    *         for work that depends on the result of earlier work
+    */
+   public <R> CafeFuture<R> thenAsync(final Step<? super T, CafeFuture<R>> step) {
+      final CafeFuture<R> next = new CafeFuture<R>(_executor);
+      onDone(new Callback<T>(){
+         public void done(T value, SQLException error){
+            if (error != null){
+               next.fail(error);
+               return;
+            }//end if
+            try{
+               step.apply(value).onDone(new Callback<R>(){
+                  public void done(R result, SQLException failure){
+                     next.finish(result, failure);
+                  }
+               });
+            }catch (SQLException e){
+               next.fail(e);
+            }catch (RuntimeException e){
+               next.fail(new SQLException(e.toString()));
+            }//end try
+         }
+      });
+      return next;
+   }//end thenAsync
+
+   /**
+    * @param executor where the callbacks on the result run
+    * @return a future of all the values, in the order given, which fails
+    *         with the first error as soon as any of them fails
+    */
+   public static <T> CafeFuture<List<T>> all(final List<CafeFuture<T>> futures, Executor executor) {
+      if (futures.isEmpty())
+         return CafeFuture.<List<T>>completed(new ArrayList<T>(), executor);
+      final CafeFuture<List<T>> all = new CafeFuture<List<T>>(executor);
+      final AtomicInteger left = new AtomicInteger(futures.size());
+      for (CafeFuture<T> future : futures){
+         future.onDone(new Callback<T>(){
+            public void done(T value, SQLException error){
+               if (error != null){
+                  all.fail(error);
+               }else if (left.decrementAndGet() == 0){
+                  List<T> values = new ArrayList<T>(futures.size());
+                  for (CafeFuture<T> f : futures)
+                     values.add(f._value);
+                  all.complete(values);
+               }//end if
+            }
+         });
+      }//end for
+      return all;
+   }//end all
+
+   /**
+    * Marks the calling thread as one that runs callbacks, for the
+    * executors futures are made with.
+    */
+   static void markCallbackThread() {
+      CALLBACK_THREAD.set(Boolean.TRUE);
+   }//end markCallbackThread
+
+   /**
+    * Waits for the value, for callers that have nothing else to do.
+    * Callbacks and async jobs must chain with then() instead: a join on
+    * their threads fails unless the future is already done, since with
+    * every such thread waiting nothing would finish. The futures of
+    * blocking submits are completed by the pool's workers and can always
+    * be joined.
+    *
+    * @throws java.sql.SQLException what the work failed with, or when
+    *         called on a callback thread
+    */
+   public T join() throws SQLException {
+      if (_executor != DIRECT && !isDone() && CALLBACK_THREAD.get() != null)
+         throw new SQLException("A callback or async job cannot wait for another database request; chain it with then()");
+      try{
+         _done.await();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the database");
+      }//end try
+      if (_error != null)
+         throw _error;
+      return _value;
+   }//end join
+
+   /**
+    * Work already queued cannot be taken back, so this never cancels.
+    */
+   public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+   }//end cancel
+
+   public boolean isCancelled() {
+      return false;
+   }//end isCancelled
+
+   public boolean isDone() {
+      return _done.getCount() == 0;
+   }//end isDone
+
+   public T get() throws InterruptedException, ExecutionException {
+      _done.await();
+      return outcome();
+   }//end get
+
+   public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      if (!_done.await(timeout, unit))
+         throw new TimeoutException();
+      return outcome();
+   }//end get
+
+   private T outcome() throws ExecutionException {
+      if (_error != null)
+         throw new ExecutionException(_error);
+      return _value;
+   }//end outcome
+
+}//end CafeFuture
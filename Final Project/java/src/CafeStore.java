@@ -0,0 +1,156 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The data the cafe works with, without saying where it is kept.
+ * JdbcCafeStore keeps it in Postgres, MemoryCafeStore keeps it in the
+ * process so the business flows can be run and measured without a database.
+ *
+ * Records are returned as lists of strings, the same shape
+ * Cafe.executeQueryAndReturnResult gives back.
+ */
+public interface CafeStore {
+
+   /**
+    * Adds a user.
+    *
+    * @return false if the login or phone number is taken
+    */
+   boolean createUser(String login, String password, String phone, String type) throws SQLException;
+
+   /**
+    * @return true if a user with this login and password exists
+    */
+   boolean checkLogin(String login, String password) throws SQLException;
+
+   /**
+    * @return the user's type (Customer, Employee or Manager), or null if
+    *         there is no such user
+    */
+   String getUserType(String login) throws SQLException;
+
+   /**
+    * Searches users by login and phone number, ignoring case. Text shorter
+    * than SEARCH_ANYWHERE characters matches the start of a login or of
+    * the phone number's digits, longer text matches anywhere in them.
+    *
+    * @param after the last login of the previous page, or null for the first page
+    * @return records of (login, phoneNum, type), by login
+    */
+   List<List<String>> searchUsers(String text, String after, int limit) throws SQLException;
+
+   // shortest search text matched anywhere rather than as a prefix; the
+   // trigram indexes cannot help with less
+   int SEARCH_ANYWHERE = 3;
+
+   /**
+    * Replaces the user's favorite items. Names not on the menu are ignored.
+    */
+   void setFavorites(String login, List<String> itemNames) throws SQLException;
+
+   /**
+    * @return records of (itemName, price) the user most likely orders, best first
+    */
+   List<List<String>> likelyItems(String login, int limit) throws SQLException;
+
+   /**
+    * @return the whole menu as records of (itemName, type, price), by name
+    */
+   List<List<String>> getMenu() throws SQLException;
+
+   /**
+    * Finds a menu item by name, ignoring case.
+    *
+    * @return the record (itemName, price), or null if it is not on the menu
+    */
+   List<String> findMenuItem(String name) throws SQLException;
+
+   /**
+    * Adds an item to the menu.
+    */
+   void addMenuItem(String name, String type, BigDecimal price, String description, String imageURL) throws SQLException;
+
+   /**
+    * Removes an item from the menu, ignoring case.
+    *
+    * @return false if it was not on the menu
+    */
+   boolean deleteMenuItem(String name) throws SQLException;
+
+   /**
+    * Opens a new, empty, unpaid order.
+    *
+    * @return the new order id
+    */
+   int createOrder(String login) throws SQLException;
+
+   /**
+    * @return true if the order exists, belongs to login and is not paid
+    */
+   boolean isOpenOrder(int orderid, String login) throws SQLException;
+
+   /**
+    * Adds an item to an unpaid order and its menu price to the order total.
+    * The price is read in the same transaction, so a price change by a
+    * manager is either charged in full or not at all.
+    *
+    * @return the new order total
+    * @throws java.sql.SQLException if the order is paid, missing, the item
+    *         is not on the menu or is already in the order
+    */
+   BigDecimal addOrderItem(int orderid, String itemName) throws SQLException;
+
+   /**
+    * Takes an item off an unpaid order and its price off the order total.
+    *
+    * @return the new order total, or null if the item was not in the order
+    */
+   BigDecimal removeOrderItem(int orderid, String itemName) throws SQLException;
+
+   /**
+    * @return the current total of the order, or null if there is no such order
+    */
+   BigDecimal getOrderTotal(int orderid) throws SQLException;
+
+   /**
+    * Marks an order as paid.
+    *
+    * @return the number of orders changed, 0 if already paid or missing
+    */
+   int markOrderPaid(int orderid) throws SQLException;
+
+   /**
+    * Marks every unpaid order with an id in [fromId, toId] as paid, in one
+    * statement.
+    *
+    * @param login only orders of this user, or null for anybody's
+    * @return the number of orders changed
+    */
+   int markOrdersPaid(int fromId, int toId, String login) throws SQLException;
+
+   /**
+    * Sets the status of every item of the orders with an id in
+    * [fromId, toId], in one statement, and stamps them with the time of
+    * the change. Items only move forward, Hasn't started to Started to
+    * Finished, unless backward is set; items that already have the status
+    * are left alone.
+    *
+    * @param login only orders of this user, or null for anybody's
+    * @param itemName only this item, ignoring case, or null for all of them
+    * @param status Hasn't started, Started or Finished
+    * @param backward also move items that are further along back to status,
+    *        to send them back to the kitchen
+    * @return the number of items changed
+    */
+   int setItemStatus(int fromId, int toId, String login, String itemName, String status, boolean backward) throws SQLException;
+
+   /**
+    * Claims up to limit items nobody has started, oldest first, and marks
+    * them started. Items another employee is claiming are skipped.
+    *
+    * @return the claimed items as records of (orderid, itemName)
+    */
+   List<List<String>> claimKitchenItems(int limit) throws SQLException;
+
+}//end CafeStore
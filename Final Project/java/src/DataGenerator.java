@@ -0,0 +1,435 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates users, menu, orders and item status for load testing, in the
+ * ';' separated format load_data.sql and COPY read.
+ *
+ * Rows are made in chunks on several threads and written in order, with
+ * only a few chunks in memory at a time, so the row counts can go far past
+ * what fits in memory. Every chunk has its own seed, so the output only
+ * depends on --seed, never on --threads; that also means one table can be
+ * generated on its own (--stdout) and still match the others.
+ *
+ * The data looks like a real cafe: only Customers place orders and a few
+ * of them order a lot, a few items sell far more than the rest (Zipf),
+ * orders cluster around breakfast, lunch and the afternoon, weekends are
+ * quieter, and only the most recent orders are still unpaid or in the
+ * kitchen.
+ *
+ * Usage: java DataGenerator [--users N] [--orders N] [--menu N]
+ *           [--items-per-order N] [--days N] [--end yyyy-mm-dd]
+ *           [--seed N] [--threads N] [--base-menu file]
+ *           [--out dir | --stdout users|favitems|menu|orders|itemstatus]
+ *
+ * With --out it writes users.csv (with the old favorites column, like
+ * data/users.csv), menu.csv, orders.csv and itemStatus.csv. With --stdout
+ * it streams one table in its column order, ready for COPY ... FROM STDIN.
+ */
+public class DataGenerator {
+
+   // rows per chunk of work
+   static final int CHUNK = 20000;
+
+   // popular items sell this much more, as in Zipf's law
+   static final double ITEM_SKEW = 1.1;
+
+   // share of the orders placed by the busiest customers grows with this
+   static final double CUSTOMER_SKEW = 2.5;
+
+   static final String[] STATUSES = { "Hasn't started", "Started", "Finished" };
+
+   // meal peaks: hour of day, spread in hours, share of the orders
+   static final double[][] PEAKS = { { 8.0, 1.0, 0.35 }, { 12.5, 1.0, 0.40 }, { 16.0, 1.5, 0.25 } };
+
+   long users = 30000;
+   long orders = 100000;
+   int menuSize = 13;
+   int itemsPerOrder = 3;
+   int days = 365;
+   String end = "2026-01-01";
+   long seed = 166;
+   int threads = Runtime.getRuntime().availableProcessors();
+   String baseMenu = null;
+   String out = "generated";
+   String stdout = null;
+
+   List<String[]> menuRows;
+   String[] itemNames;
+   long[] itemCents;
+   double[] itemCdf;
+   String[] dayStrings;
+   boolean[] weekend;
+
+   public static void main(String[] args) throws Exception {
+      DataGenerator gen = new DataGenerator();
+      for (int i = 0; i + 1 < args.length; i += 2){
+         String value = args[i + 1];
+         if (args[i].equals("--users")) gen.users = Long.parseLong(value);
+         else if (args[i].equals("--orders")) gen.orders = Long.parseLong(value);
+         else if (args[i].equals("--menu")) gen.menuSize = Integer.parseInt(value);
+         else if (args[i].equals("--items-per-order")) gen.itemsPerOrder = Integer.parseInt(value);
+         else if (args[i].equals("--days")) gen.days = Integer.parseInt(value);
+         else if (args[i].equals("--end")) gen.end = value;
+         else if (args[i].equals("--seed")) gen.seed = Long.parseLong(value);
+         else if (args[i].equals("--threads")) gen.threads = Integer.parseInt(value);
+         else if (args[i].equals("--base-menu")) gen.baseMenu = value;
+         else if (args[i].equals("--out")) gen.out = value;
+         else if (args[i].equals("--stdout")) gen.stdout = value.toLowerCase();
+         else {
+            System.err.println("Unknown option " + args[i]);
+            return;
+         }//end if
+      }//end for
+      if (args.length % 2 != 0){
+         System.err.println("Every option takes a value");
+         return;
+      }//end if
+      if (gen.orders > 0 && customers(gen.users) == 0){
+         System.err.println("Orders need customers: --users must be at least 3");
+         return;
+      }//end if
+      gen.run();
+   }//end main
+
+   void run() throws Exception {
+      buildMenu();
+      buildCalendar();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         if (stdout != null){
+            Writer w = writer(System.out);
+            if (stdout.equals("users")) writeUsers(pool, w, false);
+            else if (stdout.equals("favitems")) writeFavorites(pool, w);
+            else if (stdout.equals("menu")) writeMenu(w);
+            else if (stdout.equals("orders")) writeOrders(pool, w, null);
+            else if (stdout.equals("itemstatus")) writeOrders(pool, null, w);
+            else throw new IllegalArgumentException("Unknown table " + stdout);
+            w.flush();
+            return;
+         }//end if
+
+         File dir = new File(out);
+         dir.mkdirs();
+         long started = System.nanoTime();
+         Writer menu = writer(new FileOutputStream(new File(dir, "menu.csv")));
+         writeMenu(menu);
+         menu.close();
+         Writer usersOut = writer(new FileOutputStream(new File(dir, "users.csv")));
+         writeUsers(pool, usersOut, true);
+         usersOut.close();
+         Writer ordersOut = writer(new FileOutputStream(new File(dir, "orders.csv")));
+         Writer itemsOut = writer(new FileOutputStream(new File(dir, "itemStatus.csv")));
+         writeOrders(pool, ordersOut, itemsOut);
+         ordersOut.close();
+         itemsOut.close();
+         System.err.println(String.format("%d users, %d menu items, %d orders in %.1f s -> %s",
+                                          users, menuSize, orders, (System.nanoTime() - started) / 1e9,
+                                          dir.getPath()));
+      }finally{
+         pool.shutdownNow();
+      }//end try
+   }//end run
+
+   static Writer writer(OutputStream stream) throws IOException {
+      return new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 1 << 16);
+   }//end writer
+
+   /*
+    * The base menu file first, then made up items up to menuSize
+    **/
+   void buildMenu() throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      if (baseMenu != null){
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(baseMenu), "UTF-8"));
+         String line;
+         while ((line = reader.readLine()) != null && rows.size() < menuSize)
+            if (!line.trim().isEmpty())
+               rows.add(line.split(";", -1));
+         reader.close();
+      }//end if
+      Random random = new Random(seed);
+      String[] types = { "Drinks", "Sweets", "Soup", "Sandwiches", "Salads" };
+      while (rows.size() < menuSize){
+         int n = rows.size();
+         int cents = 99 + random.nextInt(900);
+         String price = cents / 100 + "." + String.format("%02d", cents % 100);
+         rows.add(new String[] { "Item " + n, types[n % types.length], price, "", "" });
+      }//end while
+
+      itemNames = new String[menuSize];
+      itemCents = new long[menuSize];
+      for (int i = 0; i < menuSize; i++){
+         itemNames[i] = rows.get(i)[0];
+         itemCents[i] = Math.round(Double.parseDouble(rows.get(i)[2]) * 100);
+      }//end for
+      menuRows = rows;
+
+      // popularity follows the order of the menu: the first item sells the most
+      itemCdf = new double[menuSize];
+      double sum = 0;
+      for (int i = 0; i < menuSize; i++){
+         sum += 1.0 / Math.pow(i + 1, ITEM_SKEW);
+         itemCdf[i] = sum;
+      }//end for
+      for (int i = 0; i < menuSize; i++)
+         itemCdf[i] /= sum;
+   }//end buildMenu
+
+   void buildCalendar() {
+      String[] parts = end.split("-");
+      java.util.Calendar cal = java.util.Calendar.getInstance(java.util.TimeZone.getTimeZone("UTC"));
+      cal.clear();
+      cal.set(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) - 1, Integer.parseInt(parts[2]));
+      cal.add(java.util.Calendar.DAY_OF_MONTH, -days);
+      dayStrings = new String[days];
+      weekend = new boolean[days];
+      for (int d = 0; d < days; d++){
+         dayStrings[d] = String.format("%04d-%02d-%02d", cal.get(java.util.Calendar.YEAR),
+                                       cal.get(java.util.Calendar.MONTH) + 1, cal.get(java.util.Calendar.DAY_OF_MONTH));
+         int dow = cal.get(java.util.Calendar.DAY_OF_WEEK);
+         weekend[d] = dow == java.util.Calendar.SATURDAY || dow == java.util.Calendar.SUNDAY;
+         cal.add(java.util.Calendar.DAY_OF_MONTH, 1);
+      }//end for
+   }//end buildCalendar
+
+   void writeMenu(Writer w) throws IOException {
+      for (String[] row : menuRows){
+         for (int i = 0; i < 5; i++){
+            if (i > 0)
+               w.write(';');
+            w.write(i < row.length ? row[i] : "");
+         }//end for
+         w.write('\n');
+      }//end for
+   }//end writeMenu
+
+   static String login(long user) {
+      return user == 0 ? "Admin" : "user" + user;
+   }//end login
+
+   // unique for every user below ten billion
+   static void phone(StringBuilder b, long user) {
+      long n = user + 1000000000L;
+      b.append("+1(").append(n / 10000000 % 1000).append(')');
+      pad(b, n / 10000 % 1000, 3);
+      b.append('-');
+      pad(b, n % 10000, 4);
+   }//end phone
+
+   static void pad(StringBuilder b, long value, int width) {
+      String s = Long.toString(value);
+      for (int i = s.length(); i < width; i++)
+         b.append('0');
+      b.append(s);
+   }//end pad
+
+   static String type(long user) {
+      if (user == 0)
+         return "Manager";
+      return user % 100 == 1 ? "Employee" : "Customer";
+   }//end type
+
+   // how many of the users are Customers: all but the Manager and the Employees
+   static long customers(long users) {
+      return users <= 2 ? 0 : (users - 1) - ((users - 2) / 100 + 1);
+   }//end customers
+
+   // the Customer of a rank, busiest first: 2..100, 102..200, ...
+   static long customer(long rank) {
+      return rank / 99 * 100 + 2 + rank % 99;
+   }//end customer
+
+   /*
+    * Users' favorites are drawn from the popular items, so they agree
+    * with what those users tend to order
+    **/
+   void favorites(Random random, long user, List<String> into) {
+      into.clear();
+      int count = random.nextInt(4);
+      for (int i = 0; i < count; i++){
+         String item = itemNames[pickItem(random)];
+         if (!into.contains(item))
+            into.add(item);
+      }//end for
+   }//end favorites
+
+   void writeUsers(ExecutorService pool, final Writer w, final boolean withFavorites) throws Exception {
+      writeChunks(pool, users, new ChunkMaker(){
+         public String[] make(long first, long count, Random random){
+            StringBuilder b = new StringBuilder((int) count * 64);
+            List<String> favs = new ArrayList<String>();
+            for (long u = first; u < first + count; u++){
+               favorites(random, u, favs);
+               b.append(login(u)).append(';');
+               phone(b, u);
+               b.append(';').append("pw").append(u).append(';');
+               if (withFavorites){
+                  for (int i = 0; i < favs.size(); i++)
+                     b.append(i > 0 ? "," : "").append(favs.get(i));
+                  b.append(';');
+               }//end if
+               b.append(type(u)).append('\n');
+            }//end for
+            return new String[] { b.toString() };
+         }
+      }, 1, w, null);
+   }//end writeUsers
+
+   void writeFavorites(ExecutorService pool, final Writer w) throws Exception {
+      writeChunks(pool, users, new ChunkMaker(){
+         public String[] make(long first, long count, Random random){
+            StringBuilder b = new StringBuilder((int) count * 16);
+            List<String> favs = new ArrayList<String>();
+            for (long u = first; u < first + count; u++){
+               favorites(random, u, favs);
+               for (String item : favs)
+                  b.append(login(u)).append(';').append(item).append('\n');
+            }//end for
+            return new String[] { b.toString() };
+         }
+      }, 1, w, null);
+   }//end writeFavorites
+
+   /*
+    * Orders and their items are made together so totals and ids agree;
+    * either writer may be null to skip that table
+    **/
+   void writeOrders(ExecutorService pool, Writer ordersOut, Writer itemsOut) throws Exception {
+      final long perDay = Math.max(1, orders / days);
+      final long customers = customers(users);
+      writeChunks(pool, orders, new ChunkMaker(){
+         public String[] make(long first, long count, Random random){
+            StringBuilder o = new StringBuilder((int) count * 48);
+            StringBuilder s = new StringBuilder((int) count * 64);
+            int[] picked = new int[Math.min(menuSize, itemsPerOrder * 2)];
+            for (long id = first + 1; id <= first + count; id++){
+               // orders are spread over the days in id order, so ids grow with time
+               int day = (int) Math.min(days - 1, (id - 1) / perDay);
+               if (weekend[day] && random.nextDouble() < 0.3)
+                  day = Math.max(0, day - 1 - random.nextInt(2));
+               int second = secondOfDay(random);
+               boolean recent = day == days - 1;
+               boolean paid = !recent || random.nextDouble() < 0.6;
+               long customer = customer((long) (customers * Math.pow(random.nextDouble(), CUSTOMER_SKEW)));
+
+               // 1..2*itemsPerOrder-1 distinct items, itemsPerOrder on average
+               int n = Math.min(picked.length, 1 + random.nextInt(Math.max(1, 2 * itemsPerOrder - 1)));
+               int have = 0;
+               long total = 0;
+               for (int tries = 0; have < n && tries < n * 8; tries++){
+                  int item = pickItem(random);
+                  boolean seen = false;
+                  for (int k = 0; k < have; k++)
+                     seen |= picked[k] == item;
+                  if (!seen){
+                     picked[have++] = item;
+                     total += itemCents[item];
+                  }//end if
+               }//end for
+
+               o.append(id).append(';').append(login(customer)).append(';')
+                .append(paid ? 't' : 'f').append(';');
+               timestamp(o, day, second);
+               o.append(';').append(total / 100).append('.');
+               pad(o, total % 100, 2);
+               o.append('\n');
+
+               for (int k = 0; k < have; k++){
+                  String status = paid ? STATUSES[2] : STATUSES[random.nextInt(3)];
+                  int updated = Math.min(86399, second + 60 + random.nextInt(900));
+                  s.append(id).append(';').append(itemNames[picked[k]]).append(';');
+                  timestamp(s, day, updated);
+                  s.append(';').append(status).append(";\n");
+               }//end for
+            }//end for
+            return new String[] { o.toString(), s.toString() };
+         }
+      }, 2, ordersOut, itemsOut);
+   }//end writeOrders
+
+   int pickItem(Random random) {
+      int i = Arrays.binarySearch(itemCdf, random.nextDouble());
+      return Math.min(menuSize - 1, i < 0 ? -i - 1 : i);
+   }//end pickItem
+
+   /*
+    * A second of the day from the meal peaks, inside opening hours 6:00-22:00
+    **/
+   static int secondOfDay(Random random) {
+      double pick = random.nextDouble();
+      double[] peak = PEAKS[PEAKS.length - 1];
+      for (double[] p : PEAKS){
+         if (pick < p[2]){
+            peak = p;
+            break;
+         }//end if
+         pick -= p[2];
+      }//end for
+      double hour = peak[0] + random.nextGaussian() * peak[1];
+      hour = Math.max(6.0, Math.min(21.999, hour));
+      return (int) (hour * 3600);
+   }//end secondOfDay
+
+   void timestamp(StringBuilder b, int day, int second) {
+      b.append(dayStrings[day]).append(' ');
+      pad(b, second / 3600, 2);
+      b.append(':');
+      pad(b, second / 60 % 60, 2);
+      b.append(':');
+      pad(b, second % 60, 2);
+   }//end timestamp
+
+   /*
+    * Makes the rows of [first, first + count) for up to `outputs` tables
+    **/
+   interface ChunkMaker {
+      String[] make(long first, long count, Random random);
+   }//end ChunkMaker
+
+   /*
+    * Runs the chunks on the pool and writes them in order. Only a couple
+    * of chunks per thread are in flight, so memory stays flat.
+    **/
+   void writeChunks(ExecutorService pool, long rows, final ChunkMaker maker, int outputs,
+                    Writer first, Writer second) throws Exception {
+      final long salt = seed * 1000003L + rows * 31 + outputs;
+      ArrayDeque<Future<String[]>> inFlight = new ArrayDeque<Future<String[]>>();
+      long next = 0;
+      while (next < rows || !inFlight.isEmpty()){
+         while (next < rows && inFlight.size() < threads * 2){
+            final long start = next;
+            final long count = Math.min(CHUNK, rows - next);
+            inFlight.add(pool.submit(new Callable<String[]>(){
+               public String[] call(){
+                  return maker.make(start, count, new Random(salt ^ (start * 0x9E3779B97F4A7C15L)));
+               }
+            }));
+            next += count;
+         }//end while
+         String[] chunk = inFlight.poll().get();
+         if (first != null)
+            first.write(chunk[0]);
+         if (second != null && outputs > 1)
+            second.write(chunk[1]);
+      }//end while
+   }//end writeChunks
+
+}//end DataGenerator
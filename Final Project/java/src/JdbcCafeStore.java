@@ -0,0 +1,202 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * CafeStore kept in Postgres. Every statement goes through the query
+ * helpers of the Cafe it was built with.
+ */
+public class JdbcCafeStore implements CafeStore {
+
+   private final Cafe _esql;
+
+   public JdbcCafeStore(Cafe esql) {
+      this._esql = esql;
+   }//end JdbcCafeStore
+
+   public boolean createUser(String login, String password, String phone, String type) throws SQLException {
+      String taken = String.format("SELECT login FROM USERS WHERE login = '%s' OR phoneNum = '%s'", login, phone);
+      if (_esql.executeQuery(taken) > 0)
+         return false;
+      String query = String.format("INSERT INTO USERS (phoneNum, login, password, type) VALUES ('%s','%s','%s','%s')", phone, login, password, type);
+      _esql.executeUpdate(query);
+      return true;
+   }//end createUser
+
+   public boolean checkLogin(String login, String password) throws SQLException {
+      String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
+      return _esql.executeQuery(query) > 0;
+   }//end checkLogin
+
+   public String getUserType(String login) throws SQLException {
+      String query = String.format("SELECT type FROM Users WHERE login = '%s'", login);
+      List<List<String>> result = _esql.executeQueryAndReturnResult(query);
+      return result.isEmpty() ? null : result.get(0).get(0);
+   }//end getUserType
+
+   public List<List<String>> searchUsers(String text, String after, int limit) throws SQLException {
+      String login = likeText(text.toLowerCase());
+      String digits = text.replaceAll("[^0-9]", "");
+      String anywhere = text.length() < SEARCH_ANYWHERE ? "" : "%";
+      StringBuilder query = new StringBuilder("SELECT login, phoneNum, type FROM Users WHERE (");
+      query.append(String.format("LOWER(login) LIKE '%s%s%%'", anywhere, login));
+      if (digits.length() > 0)
+         query.append(String.format(" OR regexp_replace(phoneNum, '[^0-9]', '', 'g') LIKE '%s%s%%'", anywhere, digits));
+      query.append(")");
+      if (after != null)
+         query.append(String.format(" AND login > '%s'", after.replace("'", "''")));
+      query.append(String.format(" ORDER BY login LIMIT %d", limit));
+      return _esql.executeQueryAndReturnResult(query.toString());
+   }//end searchUsers
+
+   // escapes text for a LIKE pattern inside a quoted literal
+   private static String likeText(String text) {
+      return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_").replace("'", "''");
+   }//end likeText
+
+   public void setFavorites(final String login, List<String> itemNames) throws SQLException {
+      final StringBuilder names = new StringBuilder();
+      for (String name : itemNames){
+         if (names.length() > 0)
+            names.append(",");
+         names.append("'").append(name.toLowerCase()).append("'");
+      }
+      _esql.runTransaction(new RequestScheduler.Work<Void>(){
+         public Void run(Connection conn) throws SQLException {
+            _esql.executeUpdate(String.format("DELETE FROM FavItems WHERE LOWER(login) = LOWER('%s')", login));
+            if (names.length() > 0){
+               String query = String.format("INSERT INTO FavItems (login, itemName) SELECT u.login, m.itemName FROM Users u, Menu m WHERE LOWER(u.login) = LOWER('%s') AND LOWER(m.itemName) IN (%s)", login, names);
+               _esql.executeUpdate(query);
+            }//end if
+            return null;
+         }
+      });
+   }//end setFavorites
+
+   public List<List<String>> likelyItems(String login, int limit) throws SQLException {
+      String query = String.format("SELECT r.itemName, m.price FROM UserItemRank r, Menu m WHERE r.login = '%s' AND r.score > 0 AND m.itemName = r.itemName ORDER BY r.score DESC, r.lastOrdered DESC LIMIT %d", login, limit);
+      return _esql.executeQueryAndReturnResult(query);
+   }//end likelyItems
+
+   public List<List<String>> getMenu() throws SQLException {
+      return _esql.executeQueryAndReturnResult("SELECT itemName, type, price FROM MENU ORDER BY itemName");
+   }//end getMenu
+
+   public List<String> findMenuItem(String name) throws SQLException {
+      String query = String.format("SELECT itemName, price from MENU WHERE LOWER(itemName) = '%s' ", name.toLowerCase());
+      List<List<String>> result = _esql.executeQueryAndReturnResult(query);
+      return result.isEmpty() ? null : result.get(0);
+   }//end findMenuItem
+
+   public void addMenuItem(String name, String type, BigDecimal price, String description, String imageURL) throws SQLException {
+      String query = String.format("INSERT INTO MENU (itemName, type, price, description, imageURL) VALUES ('%s','%s',%s,'%s','%s')", name, type, price.toPlainString(), description, imageURL);
+      _esql.executeUpdate(query);
+   }//end addMenuItem
+
+   public boolean deleteMenuItem(String name) throws SQLException {
+      String query = String.format("DELETE FROM MENU WHERE LOWER(itemName) = '%s'", name.toLowerCase());
+      return _esql.executeUpdate(query) > 0;
+   }//end deleteMenuItem
+
+   public int createOrder(String login) throws SQLException {
+      // the serial column hands out the id, so two registers never pick the same one
+      String query = String.format("INSERT INTO ORDERS (login, paid, timeStampRecieved, total) VALUES ('%s', false, CURRENT_TIMESTAMP, 0) RETURNING orderid", login);
+      List<List<String>> result = _esql.executeQueryAndReturnResult(query);
+      return Integer.parseInt(result.get(0).get(0));
+   }//end createOrder
+
+   public boolean isOpenOrder(int orderid, String login) throws SQLException {
+      String query = String.format("SELECT orderid FROM ORDERS WHERE orderid = %d AND login = '%s' AND paid = false", orderid, login);
+      return _esql.executeQuery(query) > 0;
+   }//end isOpenOrder
+
+   public BigDecimal addOrderItem(final int orderid, final String itemName) throws SQLException {
+      // the item and the new total go in together or not at all
+      return _esql.runTransaction(new RequestScheduler.Work<BigDecimal>(){
+         public BigDecimal run(Connection conn) throws SQLException {
+            // the share lock holds the price until the total is written
+            List<List<String>> price = _esql.executeQueryAndReturnResult(String.format("SELECT price FROM Menu WHERE itemName = '%s' FOR SHARE", itemName));
+            if (price.isEmpty())
+               throw new SQLException(String.format("%s is not on the menu", itemName));
+            String query = String.format("INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, comments) VALUES (%d, '%s', CURRENT_TIMESTAMP, 'Hasn''t started', '')", orderid, itemName);
+            _esql.executeUpdate(query);
+            return addToOrderTotal(orderid, new BigDecimal(price.get(0).get(0)));
+         }
+      });
+   }//end addOrderItem
+
+   public BigDecimal removeOrderItem(final int orderid, String itemName) throws SQLException {
+      final List<String> item = findMenuItem(itemName);
+      if (item == null)
+         return null;
+      return _esql.runTransaction(new RequestScheduler.Work<BigDecimal>(){
+         public BigDecimal run(Connection conn) throws SQLException {
+            String query = String.format("DELETE FROM ITEMSTATUS WHERE itemName = '%s' AND orderid = %d", item.get(0), orderid);
+            if (_esql.executeUpdate(query) == 0)
+               return null;
+            // the other items keep their place in the kitchen queue
+            return addToOrderTotal(orderid, new BigDecimal(item.get(1)).negate());
+         }
+      });
+   }//end removeOrderItem
+
+   public BigDecimal getOrderTotal(int orderid) throws SQLException {
+      List<List<String>> result = _esql.executeQueryAndReturnResult(String.format("SELECT total FROM Orders WHERE orderid = %d", orderid));
+      return result.isEmpty() ? null : new BigDecimal(result.get(0).get(0));
+   }//end getOrderTotal
+
+   /**
+    * Adds delta to the total of an unpaid order in one UPDATE, so the row
+    * lock is held only from this statement to the commit of the caller's
+    * transaction and concurrent edits of the same order queue on it instead
+    * of losing each other's changes. The version is bumped for anybody
+    * watching the order for changes.
+    *
+    * @param orderid the order to change
+    * @param delta the amount to add, negative to take off
+    * @return the new total of the order
+    * @throws java.sql.SQLException when the order is paid or missing, or the
+    *         total would go below zero; the caller's transaction must then
+    *         be rolled back
+    */
+   private BigDecimal addToOrderTotal(int orderid, BigDecimal delta) throws SQLException {
+      String query = String.format("UPDATE Orders SET total = total + %s, version = version + 1 WHERE orderid = %d AND paid = false RETURNING total", delta.toPlainString(), orderid);
+      List<List<String>> result = _esql.executeQueryAndReturnResult(query);
+      if (result.isEmpty())
+         throw new SQLException(String.format("Order %d is paid or does not exist", orderid));
+      BigDecimal total = new BigDecimal(result.get(0).get(0));
+      if (total.signum() < 0)
+         throw new SQLException(String.format("Order %d would have a total of %s", orderid, total.toPlainString()));
+      return total;
+   }//end addToOrderTotal
+
+   public int markOrderPaid(int orderid) throws SQLException {
+      // bumping the version makes a racing customer edit re-read and see it paid
+      return _esql.executeUpdate(String.format("UPDATE Orders SET paid = true, version = version + 1 WHERE orderid = %d AND paid = false", orderid));
+   }//end markOrderPaid
+
+   public int markOrdersPaid(int fromId, int toId, String login) throws SQLException {
+      String query = String.format("UPDATE Orders SET paid = true, version = version + 1 WHERE orderid BETWEEN %d AND %d AND paid = false", fromId, toId);
+      if (login != null)
+         query += String.format(" AND login = '%s'", login);
+      return _esql.executeUpdate(query);
+   }//end markOrdersPaid
+
+   public int setItemStatus(int fromId, int toId, String login, String itemName, String status, boolean backward) throws SQLException {
+      // item_status is declared in kitchen order, so < means behind
+      String quoted = status.replace("'", "''");
+      String query = String.format("UPDATE ItemStatus s SET status = '%s', lastUpdated = CURRENT_TIMESTAMP WHERE s.orderid BETWEEN %d AND %d AND s.status %s '%s'", quoted, fromId, toId, backward ? "<>" : "<", quoted);
+      if (itemName != null)
+         query += String.format(" AND LOWER(s.itemName) = '%s'", itemName.toLowerCase().replace("'", "''"));
+      if (login != null)
+         query += String.format(" AND s.orderid IN (SELECT orderid FROM Orders WHERE login = '%s' AND orderid BETWEEN %d AND %d)", login.replace("'", "''"), fromId, toId);
+      return _esql.executeUpdate(query);
+   }//end setItemStatus
+
+   public List<List<String>> claimKitchenItems(int limit) throws SQLException {
+      String query = String.format("UPDATE ItemStatus s SET status = 'Started', lastUpdated = CURRENT_TIMESTAMP FROM (SELECT orderid, itemName FROM ItemStatus WHERE status = 'Hasn''t started' ORDER BY lastUpdated LIMIT %d FOR UPDATE SKIP LOCKED) c WHERE s.orderid = c.orderid AND s.itemName = c.itemName RETURNING s.orderid, s.itemName", limit);
+      return _esql.executeQueryAndReturnResult(query);
+   }//end claimKitchenItems
+
+}//end JdbcCafeStore
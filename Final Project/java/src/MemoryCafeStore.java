@@ -0,0 +1,561 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CafeStore kept in memory, for running the business flows without a
+ * database. Nothing is persisted.
+ *
+ * Orders are spread over STRIPES int keyed hash maps, each guarded by its
+ * own lock, so edits of different orders rarely touch the same lock.
+ * Money is kept as whole cents.
+ */
+public class MemoryCafeStore implements CafeStore {
+
+   // number of order stripes, a power of two
+   static final int STRIPES = 64;
+
+   // score bonus for a favorite item, same as create_ranking.sql
+   static final int FAVORITE_BONUS = 5;
+
+   static final String WAITING = "Hasn't started";
+   static final String STARTED = "Started";
+   static final String FINISHED = "Finished";
+
+   private final ConcurrentHashMap<String, User> _users = new ConcurrentHashMap<String, User>();
+   private final ConcurrentHashMap<String, String> _phones = new ConcurrentHashMap<String, String>();
+   private final ConcurrentHashMap<String, MenuItem> _menu = new ConcurrentHashMap<String, MenuItem>();
+   private final ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicInteger>> _ranks =
+      new ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicInteger>>();
+
+   private final ReentrantLock[] _locks = new ReentrantLock[STRIPES];
+   private final IntMap<Order>[] _orders;
+   private final AtomicInteger _nextOrderId = new AtomicInteger(1);
+
+   // items waiting for the kitchen, oldest first
+   private final ConcurrentLinkedQueue<Ticket> _kitchen = new ConcurrentLinkedQueue<Ticket>();
+
+   @SuppressWarnings("unchecked")
+   public MemoryCafeStore() {
+      _orders = (IntMap<Order>[]) new IntMap<?>[STRIPES];
+      for (int i = 0; i < STRIPES; i++){
+         _locks[i] = new ReentrantLock();
+         _orders[i] = new IntMap<Order>();
+      }//end for
+   }//end MemoryCafeStore
+
+   public boolean createUser(String login, String password, String phone, String type) throws SQLException {
+      if (phone != null && _phones.putIfAbsent(phone, login) != null)
+         return false;
+      if (_users.putIfAbsent(login, new User(login, password, phone, type)) != null){
+         if (phone != null)
+            _phones.remove(phone, login);
+         return false;
+      }//end if
+      return true;
+   }//end createUser
+
+   public boolean checkLogin(String login, String password) throws SQLException {
+      User user = _users.get(login);
+      return user != null && user.password.equals(password);
+   }//end checkLogin
+
+   public String getUserType(String login) throws SQLException {
+      User user = _users.get(login);
+      return user == null ? null : user.type;
+   }//end getUserType
+
+   public List<List<String>> searchUsers(String text, String after, int limit) throws SQLException {
+      String login = text.toLowerCase();
+      String digits = text.replaceAll("[^0-9]", "");
+      boolean anywhere = text.length() >= SEARCH_ANYWHERE;
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (User user : _users.values()){
+         if (after != null && user.login.compareTo(after) <= 0)
+            continue;
+         String phone = user.phone == null ? "" : user.phone.replaceAll("[^0-9]", "");
+         boolean match = anywhere ? user.login.toLowerCase().contains(login) || (digits.length() > 0 && phone.contains(digits))
+                                  : user.login.toLowerCase().startsWith(login) || (digits.length() > 0 && phone.startsWith(digits));
+         if (match)
+            result.add(Arrays.asList(user.login, user.phone, user.type));
+      }//end for
+      Collections.sort(result, new Comparator<List<String>>(){
+         public int compare(List<String> a, List<String> b){
+            return a.get(0).compareTo(b.get(0));
+         }
+      });
+      return result.size() > limit ? new ArrayList<List<String>>(result.subList(0, limit)) : result;
+   }//end searchUsers
+
+   public void setFavorites(String login, List<String> itemNames) throws SQLException {
+      User user = findUser(login);
+      if (user == null)
+         return;
+      ConcurrentHashMap<String, AtomicInteger> ranks = ranksOf(user.login);
+      synchronized (user){
+         for (String name : user.favorites)
+            ranks.get(name).addAndGet(-FAVORITE_BONUS);
+         user.favorites.clear();
+         for (String name : itemNames){
+            MenuItem item = _menu.get(name.toLowerCase());
+            if (item != null && user.favorites.add(item.name))
+               rankOf(ranks, item.name).addAndGet(FAVORITE_BONUS);
+         }//end for
+      }//end synchronized
+   }//end setFavorites
+
+   public List<List<String>> likelyItems(String login, int limit) throws SQLException {
+      ConcurrentHashMap<String, AtomicInteger> ranks = _ranks.get(login);
+      List<List<String>> result = new ArrayList<List<String>>();
+      if (ranks == null)
+         return result;
+      List<Map.Entry<String, AtomicInteger>> entries = new ArrayList<Map.Entry<String, AtomicInteger>>(ranks.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, AtomicInteger>>(){
+         public int compare(Map.Entry<String, AtomicInteger> a, Map.Entry<String, AtomicInteger> b){
+            return Integer.compare(b.getValue().get(), a.getValue().get());
+         }
+      });
+      for (Map.Entry<String, AtomicInteger> entry : entries){
+         if (result.size() == limit || entry.getValue().get() <= 0)
+            break;
+         MenuItem item = _menu.get(entry.getKey().toLowerCase());
+         if (item != null)
+            result.add(Arrays.asList(item.name, toPrice(item.cents)));
+      }//end for
+      return result;
+   }//end likelyItems
+
+   public List<List<String>> getMenu() throws SQLException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (MenuItem item : _menu.values())
+         result.add(Arrays.asList(item.name, item.type, toPrice(item.cents)));
+      Collections.sort(result, new Comparator<List<String>>(){
+         public int compare(List<String> a, List<String> b){
+            return a.get(0).compareTo(b.get(0));
+         }
+      });
+      return result;
+   }//end getMenu
+
+   public List<String> findMenuItem(String name) throws SQLException {
+      MenuItem item = _menu.get(name.toLowerCase());
+      return item == null ? null : Arrays.asList(item.name, toPrice(item.cents));
+   }//end findMenuItem
+
+   public void addMenuItem(String name, String type, BigDecimal price, String description, String imageURL) throws SQLException {
+      if (_menu.putIfAbsent(name.toLowerCase(), new MenuItem(name, type, toCents(price))) != null)
+         throw new SQLException(String.format("%s is already on the menu", name));
+   }//end addMenuItem
+
+   public boolean deleteMenuItem(String name) throws SQLException {
+      return _menu.remove(name.toLowerCase()) != null;
+   }//end deleteMenuItem
+
+   public int createOrder(String login) throws SQLException {
+      int orderid = _nextOrderId.getAndIncrement();
+      Order order = new Order(orderid, login, System.currentTimeMillis());
+      ReentrantLock lock = lockOf(orderid);
+      lock.lock();
+      try{
+         stripeOf(orderid).put(orderid, order);
+      }finally{
+         lock.unlock();
+      }//end try
+      return orderid;
+   }//end createOrder
+
+   public boolean isOpenOrder(int orderid, String login) throws SQLException {
+      ReentrantLock lock = lockOf(orderid);
+      lock.lock();
+      try{
+         Order order = stripeOf(orderid).get(orderid);
+         return order != null && !order.paid && login.equals(order.login);
+      }finally{
+         lock.unlock();
+      }//end try
+   }//end isOpenOrder
+
+   public BigDecimal addOrderItem(int orderid, String itemName) throws SQLException {
+      MenuItem menuItem = _menu.get(itemName.toLowerCase());
+      if (menuItem == null)
+         throw new SQLException(String.format("%s is not on the menu", itemName));
+      itemName = menuItem.name;
+      String login;
+      long total;
+      ReentrantLock lock = lockOf(orderid);
+      lock.lock();
+      try{
+         Order order = openOrder(orderid);
+         if (order.items.containsKey(itemName))
+            throw new SQLException(String.format("%s is already in order %d", itemName, orderid));
+         long now = System.currentTimeMillis();
+         order.items.put(itemName, new Item(itemName, now));
+         order.totalCents += menuItem.cents;
+         order.version++;
+         login = order.login;
+         total = order.totalCents;
+         _kitchen.add(new Ticket(orderid, itemName));
+      }finally{
+         lock.unlock();
+      }//end try
+      if (login != null)
+         rankOf(ranksOf(login), itemName).incrementAndGet();
+      return toDecimal(total);
+   }//end addOrderItem
+
+   public BigDecimal removeOrderItem(int orderid, String itemName) throws SQLException {
+      MenuItem menuItem = _menu.get(itemName.toLowerCase());
+      if (menuItem == null)
+         return null;
+      String login;
+      long total;
+      ReentrantLock lock = lockOf(orderid);
+      lock.lock();
+      try{
+         Order order = openOrder(orderid);
+         if (!order.items.containsKey(menuItem.name))
+            return null;
+         if (order.totalCents < menuItem.cents)
+            throw new SQLException(String.format("Order %d would have a total of %s", orderid, toPrice(order.totalCents - menuItem.cents)));
+         order.items.remove(menuItem.name);
+         order.totalCents -= menuItem.cents;
+         order.version++;
+         login = order.login;
+         total = order.totalCents;
+      }finally{
+         lock.unlock();
+      }//end try
+      if (login != null)
+         rankOf(ranksOf(login), menuItem.name).decrementAndGet();
+      return toDecimal(total);
+   }//end removeOrderItem
+
+   public BigDecimal getOrderTotal(int orderid) throws SQLException {
+      ReentrantLock lock = lockOf(orderid);
+      lock.lock();
+      try{
+         Order order = stripeOf(orderid).get(orderid);
+         return order == null ? null : toDecimal(order.totalCents);
+      }finally{
+         lock.unlock();
+      }//end try
+   }//end getOrderTotal
+
+   public int markOrderPaid(int orderid) throws SQLException {
+      ReentrantLock lock = lockOf(orderid);
+      lock.lock();
+      try{
+         Order order = stripeOf(orderid).get(orderid);
+         if (order == null || order.paid)
+            return 0;
+         order.paid = true;
+         order.version++;
+         return 1;
+      }finally{
+         lock.unlock();
+      }//end try
+   }//end markOrderPaid
+
+   public int markOrdersPaid(int fromId, int toId, String login) throws SQLException {
+      int changed = 0;
+      List<Order> orders = new ArrayList<Order>();
+      for (int s = 0; s < STRIPES; s++){
+         _locks[s].lock();
+         try{
+            orders.clear();
+            _orders[s].values(orders);
+            for (Order order : orders){
+               if (order.paid || !inRange(order, fromId, toId, login))
+                  continue;
+               order.paid = true;
+               order.version++;
+               changed++;
+            }//end for
+         }finally{
+            _locks[s].unlock();
+         }//end try
+      }//end for
+      return changed;
+   }//end markOrdersPaid
+
+   public int setItemStatus(int fromId, int toId, String login, String itemName, String status, boolean backward) throws SQLException {
+      // the claim compares statuses by identity
+      if (status.equalsIgnoreCase(WAITING))
+         status = WAITING;
+      else if (status.equalsIgnoreCase(STARTED))
+         status = STARTED;
+      else if (status.equalsIgnoreCase(FINISHED))
+         status = FINISHED;
+      else
+         throw new SQLException(String.format("%s is not an item status", status));
+      int changed = 0;
+      long now = System.currentTimeMillis();
+      List<Order> orders = new ArrayList<Order>();
+      for (int s = 0; s < STRIPES; s++){
+         _locks[s].lock();
+         try{
+            orders.clear();
+            _orders[s].values(orders);
+            for (Order order : orders){
+               if (!inRange(order, fromId, toId, login))
+                  continue;
+               for (Item item : order.items.values()){
+                  if (item.status == status || (itemName != null && !item.name.equalsIgnoreCase(itemName)))
+                     continue;
+                  if (!backward && stage(item.status) > stage(status))
+                     continue;
+                  item.status = status;
+                  item.lastUpdated = now;
+                  changed++;
+                  // sent back to the kitchen
+                  if (status == WAITING)
+                     _kitchen.add(new Ticket(order.orderid, item.name));
+               }//end for
+            }//end for
+         }finally{
+            _locks[s].unlock();
+         }//end try
+      }//end for
+      return changed;
+   }//end setItemStatus
+
+   public List<List<String>> claimKitchenItems(int limit) throws SQLException {
+      List<List<String>> claimed = new ArrayList<List<String>>();
+      List<Ticket> skipped = new ArrayList<Ticket>();
+      Ticket ticket;
+      while (claimed.size() < limit && (ticket = _kitchen.poll()) != null){
+         ReentrantLock lock = lockOf(ticket.orderid);
+         // like SKIP LOCKED: an order somebody is working on is left for later
+         if (!lock.tryLock()){
+            skipped.add(ticket);
+            continue;
+         }//end if
+         try{
+            Order order = stripeOf(ticket.orderid).get(ticket.orderid);
+            Item item = order == null ? null : order.items.get(ticket.itemName);
+            if (item != null && item.status == WAITING){
+               item.status = STARTED;
+               item.lastUpdated = System.currentTimeMillis();
+               claimed.add(Arrays.asList(String.valueOf(ticket.orderid), ticket.itemName));
+            }//end if
+         }finally{
+            lock.unlock();
+         }//end try
+      }//end while
+      _kitchen.addAll(skipped);
+      return claimed;
+   }//end claimKitchenItems
+
+   private Order openOrder(int orderid) throws SQLException {
+      Order order = stripeOf(orderid).get(orderid);
+      if (order == null || order.paid)
+         throw new SQLException(String.format("Order %d is paid or does not exist", orderid));
+      return order;
+   }//end openOrder
+
+   /*
+    * Position of a status in the kitchen: waiting, started, finished
+    **/
+   private static int stage(String status) {
+      return status == WAITING ? 0 : status == STARTED ? 1 : 2;
+   }//end stage
+
+   private static boolean inRange(Order order, int fromId, int toId, String login) {
+      return order.orderid >= fromId && order.orderid <= toId && (login == null || login.equals(order.login));
+   }//end inRange
+
+   private User findUser(String login) {
+      User user = _users.get(login);
+      if (user != null)
+         return user;
+      for (User u : _users.values())
+         if (u.login.equalsIgnoreCase(login))
+            return u;
+      return null;
+   }//end findUser
+
+   private ConcurrentHashMap<String, AtomicInteger> ranksOf(String login) {
+      ConcurrentHashMap<String, AtomicInteger> ranks = _ranks.get(login);
+      if (ranks == null){
+         ranks = new ConcurrentHashMap<String, AtomicInteger>();
+         ConcurrentHashMap<String, AtomicInteger> raced = _ranks.putIfAbsent(login, ranks);
+         if (raced != null)
+            ranks = raced;
+      }//end if
+      return ranks;
+   }//end ranksOf
+
+   private static AtomicInteger rankOf(ConcurrentHashMap<String, AtomicInteger> ranks, String itemName) {
+      AtomicInteger rank = ranks.get(itemName);
+      if (rank == null){
+         rank = new AtomicInteger();
+         AtomicInteger raced = ranks.putIfAbsent(itemName, rank);
+         if (raced != null)
+            rank = raced;
+      }//end if
+      return rank;
+   }//end rankOf
+
+   private ReentrantLock lockOf(int orderid) {
+      return _locks[orderid & (STRIPES - 1)];
+   }//end lockOf
+
+   private IntMap<Order> stripeOf(int orderid) {
+      return _orders[orderid & (STRIPES - 1)];
+   }//end stripeOf
+
+   static long toCents(BigDecimal price) {
+      return price.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue();
+   }//end toCents
+
+   static BigDecimal toDecimal(long cents) {
+      return BigDecimal.valueOf(cents, 2);
+   }//end toDecimal
+
+   static String toPrice(long cents) {
+      return toDecimal(cents).toPlainString();
+   }//end toPrice
+
+   static final class User {
+      final String login;
+      final String password;
+      final String phone;
+      final String type;
+      final Set<String> favorites = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+      User(String login, String password, String phone, String type) {
+         this.login = login;
+         this.password = password;
+         this.phone = phone;
+         this.type = type;
+      }
+   }//end User
+
+   static final class MenuItem {
+      final String name;
+      final String type;
+      final long cents;
+
+      MenuItem(String name, String type, long cents) {
+         this.name = name;
+         this.type = type;
+         this.cents = cents;
+      }
+   }//end MenuItem
+
+   // guarded by the lock of the order's stripe
+   static final class Order {
+      final int orderid;
+      final String login;
+      final long received;
+      boolean paid;
+      long totalCents;
+      int version;
+      final LinkedHashMap<String, Item> items = new LinkedHashMap<String, Item>(4);
+
+      Order(int orderid, String login, long received) {
+         this.orderid = orderid;
+         this.login = login;
+         this.received = received;
+      }
+   }//end Order
+
+   static final class Item {
+      final String name;
+      String status = WAITING;
+      long lastUpdated;
+
+      Item(String name, long lastUpdated) {
+         this.name = name;
+         this.lastUpdated = lastUpdated;
+      }
+   }//end Item
+
+   static final class Ticket {
+      final int orderid;
+      final String itemName;
+
+      Ticket(int orderid, String itemName) {
+         this.orderid = orderid;
+         this.itemName = itemName;
+      }
+   }//end Ticket
+
+   /**
+    * Open addressing hash map from int to V, with no boxing of the keys.
+    * Not thread safe; each stripe is only touched under its lock.
+    */
+   static final class IntMap<V> {
+      private int[] _keys = new int[16];
+      private Object[] _values = new Object[16];
+      private int _size = 0;
+
+      @SuppressWarnings("unchecked")
+      V get(int key) {
+         int mask = _keys.length - 1;
+         for (int i = mix(key) & mask; _values[i] != null; i = (i + 1) & mask)
+            if (_keys[i] == key)
+               return (V) _values[i];
+         return null;
+      }//end get
+
+      void put(int key, V value) {
+         if ((_size + 1) * 4 > _keys.length * 3)
+            grow();
+         int mask = _keys.length - 1;
+         int i = mix(key) & mask;
+         while (_values[i] != null && _keys[i] != key)
+            i = (i + 1) & mask;
+         if (_values[i] == null)
+            _size++;
+         _keys[i] = key;
+         _values[i] = value;
+      }//end put
+
+      int size() {
+         return _size;
+      }//end size
+
+      @SuppressWarnings("unchecked")
+      void values(List<V> into) {
+         for (Object value : _values)
+            if (value != null)
+               into.add((V) value);
+      }//end values
+
+      private void grow() {
+         int[] keys = _keys;
+         Object[] values = _values;
+         _keys = new int[keys.length * 2];
+         _values = new Object[values.length * 2];
+         int mask = _keys.length - 1;
+         for (int j = 0; j < keys.length; j++){
+            if (values[j] == null)
+               continue;
+            int i = mix(keys[j]) & mask;
+            while (_values[i] != null)
+               i = (i + 1) & mask;
+            _keys[i] = keys[j];
+            _values[i] = values[j];
+         }//end for
+      }//end grow
+
+      private static int mix(int key) {
+         int h = key * 0x9E3779B9;
+         return h ^ (h >>> 16);
+      }//end mix
+   }//end IntMap
+
+}//end MemoryCafeStore
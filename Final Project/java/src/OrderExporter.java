@@ -0,0 +1,485 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports Orders and ItemStatus to compressed, column oriented files for
+ * offline analysis.
+ *
+ * The orders to export are cut into ranges of orderid, and a few threads
+ * each read whole ranges through a cursor, FETCH_SIZE rows at a time, so
+ * the database only sees primary key and index2 range scans on a handful
+ * of connections. All threads read the same snapshot, exported by the
+ * first connection, so the files agree with each other. Point it at a
+ * replica to keep the load off the primary entirely.
+ *
+ * Each range gives one orders-LO-HI.col.gz and one items-LO-HI.col.gz.
+ * The highest orderid exported is kept in the watermark file of the output
+ * directory, and the next run only exports orders above it. Orders already
+ * exported are not exported again when they are paid or their items
+ * change later; run with --full for a complete export.
+ *
+ * The serial column hands out an id before the order commits, so an
+ * order with a lower id can still become visible after the snapshot, and
+ * a watermark above it would skip it forever. A run therefore stops at
+ * the newest order received more than --settle seconds (default 300)
+ * before its snapshot; the orders after it are left for the next run.
+ * Orders are created by one autocommitted INSERT, so only a transaction
+ * held open longer than that could still slip below the watermark.
+ *
+ * File layout, inside GZIP, all integers as varints (zigzag where signed):
+ *   "CAFECOL1", row count, column count, then for every column its name
+ *   (UTF), its encoding and its values, one column after the other:
+ *   DELTA       orderid: first value, then differences to the previous row
+ *   DICT        login, itemName, status, comments: the distinct values
+ *               (count, then UTF strings), then each row's index into them
+ *   TIME_DELTA  timestamps as epoch milliseconds, differences to the
+ *               previous row
+ *   CENTS       money as whole cents
+ *   BITS        paid, eight rows a byte
+ *   Columns that can be empty start with a BITS block of which rows are
+ *   null; null rows have no value in the column.
+ *
+ * Usage: java OrderExporter <dbname> <port> <user> <outdir> [--threads N] [--range N] [--settle S] [--full]
+ *        java OrderExporter --dump <file>   (prints a file as ';' separated rows)
+ */
+public class OrderExporter {
+
+   static final String MAGIC = "CAFECOL1";
+   static final int DELTA = 1;
+   static final int DICT = 2;
+   static final int TIME_DELTA = 3;
+   static final int CENTS = 4;
+   static final int BITS = 5;
+
+   // rows fetched from a range's cursor per round trip
+   static final int FETCH_SIZE = 5000;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length == 2 && args[0].equals("--dump")){
+         dump(new File(args[1]));
+         return;
+      }//end if
+      if (args.length < 4){
+         System.err.println("Usage: java OrderExporter <dbname> <port> <user> <outdir> [--threads N] [--range N] [--settle S] [--full]");
+         System.err.println("       java OrderExporter --dump <file>");
+         return;
+      }//end if
+      int threads = 4;
+      int range = 100000;
+      int settle = 300;
+      boolean full = false;
+      for (int i = 4; i < args.length; i++){
+         if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--range")) range = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--settle")) settle = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--full")) full = true;
+      }//end for
+
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      File dir = new File(args[3]);
+      dir.mkdirs();
+      File watermark = new File(dir, "watermark");
+      long from = full ? 0 : readWatermark(watermark);
+
+      long started = System.nanoTime();
+      BlockingQueue<Connection> connections = new ArrayBlockingQueue<Connection>(threads);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         // the first connection fixes the snapshot and the upper bound
+         Connection first = DriverManager.getConnection(url, args[2], "");
+         connections.add(first);
+         first.setAutoCommit(false);
+         execute(first, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+         String snapshot = queryString(first, "SELECT pg_export_snapshot()");
+         // now() is the start of the snapshot's transaction; lower ids still in flight are older than settle
+         String max = queryString(first, String.format("SELECT MAX(orderid) FROM Orders WHERE timeStampRecieved < now() - interval '%d seconds'", settle));
+         long to = max == null ? 0 : Long.parseLong(max);
+         for (int i = 1; i < threads; i++){
+            Connection conn = DriverManager.getConnection(url, args[2], "");
+            conn.setAutoCommit(false);
+            execute(conn, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+            execute(conn, "SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            connections.add(conn);
+         }//end for
+
+         if (to <= from){
+            System.out.println("No orders above " + from + " received more than " + settle + " s ago");
+            return;
+         }//end if
+         List<Future<long[]>> ranges = new ArrayList<Future<long[]>>();
+         for (long lo = from; lo < to; lo += range){
+            final long rangeFrom = lo;
+            final long rangeTo = Math.min(to, lo + range);
+            final BlockingQueue<Connection> free = connections;
+            final File out = dir;
+            ranges.add(pool.submit(new Callable<long[]>(){
+               public long[] call() throws Exception {
+                  Connection conn = free.take();
+                  try{
+                     return exportRange(conn, rangeFrom, rangeTo, out);
+                  }finally{
+                     free.add(conn);
+                  }//end try
+               }
+            }));
+         }//end for
+         long orders = 0, items = 0, bytes = 0;
+         for (Future<long[]> done : ranges){
+            long[] counts = done.get();
+            orders += counts[0];
+            items += counts[1];
+            bytes += counts[2];
+         }//end for
+
+         // only once every range is written
+         writeWatermark(watermark, to);
+         System.out.println(String.format("orders %d..%d: %d orders, %d items, %d ranges, %.1f MB in %.1f s",
+                                          from + 1, to, orders, items, ranges.size(),
+                                          bytes / 1048576.0, (System.nanoTime() - started) / 1e9));
+      }finally{
+         pool.shutdownNow();
+         for (Connection conn : connections){
+            try{
+               conn.rollback();
+               conn.close();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end for
+      }//end try
+   }//end main
+
+   /*
+    * Both tables for orderid in (from, to]
+    *
+    * @return orders, items and bytes written
+    **/
+   static long[] exportRange(Connection conn, long from, long to, File dir) throws SQLException, IOException {
+      String suffix = (from + 1) + "-" + to + ".col.gz";
+      String fetchOrders = "FETCH FORWARD " + FETCH_SIZE + " FROM range_orders";
+      String fetchItems = "FETCH FORWARD " + FETCH_SIZE + " FROM range_items";
+      Statement stmt = conn.createStatement();
+      try{
+         // the driver reads whole results into memory, so the range is read a batch at a time
+         stmt.execute(String.format("DECLARE range_orders NO SCROLL CURSOR FOR SELECT orderid, login, paid, timeStampRecieved, total FROM Orders WHERE orderid > %d AND orderid <= %d ORDER BY orderid", from, to));
+         ColumnWriter orders = new ColumnWriter(new String[] { "orderid", "login", "paid", "timeStampRecieved", "total" },
+                                                new int[] { DELTA, DICT, BITS, TIME_DELTA, CENTS });
+         int fetched;
+         do{
+            fetched = 0;
+            ResultSet rs = stmt.executeQuery(fetchOrders);
+            while (rs.next()){
+               BigDecimal total = rs.getBigDecimal(5);
+               Timestamp received = rs.getTimestamp(4);
+               orders.add(rs.getLong(1), rs.getString(2), rs.getBoolean(3),
+                          received == null ? null : received.getTime(),
+                          total == null ? null : total.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue());
+               fetched++;
+            }//end while
+            rs.close();
+         }while (fetched == FETCH_SIZE);
+         stmt.execute("CLOSE range_orders");
+         File ordersFile = new File(dir, "orders-" + suffix);
+         orders.write(ordersFile);
+
+         stmt.execute(String.format("DECLARE range_items NO SCROLL CURSOR FOR SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatus WHERE orderid > %d AND orderid <= %d ORDER BY orderid, itemName", from, to));
+         ColumnWriter items = new ColumnWriter(new String[] { "orderid", "itemName", "lastUpdated", "status", "comments" },
+                                               new int[] { DELTA, DICT, TIME_DELTA, DICT, DICT });
+         do{
+            fetched = 0;
+            ResultSet rs = stmt.executeQuery(fetchItems);
+            while (rs.next()){
+               Timestamp updated = rs.getTimestamp(3);
+               items.add(rs.getLong(1), rs.getString(2), updated == null ? null : updated.getTime(),
+                         rs.getString(4), rs.getString(5));
+               fetched++;
+            }//end while
+            rs.close();
+         }while (fetched == FETCH_SIZE);
+         stmt.execute("CLOSE range_items");
+         File itemsFile = new File(dir, "items-" + suffix);
+         items.write(itemsFile);
+         return new long[] { orders.rows, items.rows, ordersFile.length() + itemsFile.length() };
+      }finally{
+         stmt.close();
+      }//end try
+   }//end exportRange
+
+   /*
+    * Collects one range column by column, then encodes each column
+    **/
+   static final class ColumnWriter {
+      final String[] names;
+      final int[] encodings;
+      final List<List<Object>> columns = new ArrayList<List<Object>>();
+      int rows = 0;
+
+      ColumnWriter(String[] names, int[] encodings) {
+         this.names = names;
+         this.encodings = encodings;
+         for (int i = 0; i < names.length; i++)
+            columns.add(new ArrayList<Object>());
+      }
+
+      void add(Object... values) {
+         for (int i = 0; i < values.length; i++)
+            columns.get(i).add(values[i]);
+         rows++;
+      }
+
+      void write(File file) throws IOException {
+         File partial = new File(file.getPath() + ".part");
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(new FileOutputStream(partial), 1 << 16), 1 << 16));
+         try{
+            out.writeBytes(MAGIC);
+            varint(out, rows);
+            varint(out, names.length);
+            for (int c = 0; c < names.length; c++){
+               out.writeUTF(names[c]);
+               varint(out, encodings[c]);
+               writeColumn(out, encodings[c], columns.get(c));
+            }//end for
+         }finally{
+            out.close();
+         }//end try
+         if (!partial.renameTo(file)){
+            file.delete();
+            if (!partial.renameTo(file))
+               throw new IOException("Could not rename " + partial);
+         }//end if
+      }
+
+      private static void writeColumn(DataOutputStream out, int encoding, List<Object> values) throws IOException {
+         if (encoding == BITS){
+            bits(out, values, false);
+            return;
+         }//end if
+         bits(out, values, true);
+         if (encoding == DICT){
+            Map<Object, Integer> codes = new HashMap<Object, Integer>();
+            List<Object> dictionary = new ArrayList<Object>();
+            for (Object value : values){
+               if (value != null && !codes.containsKey(value)){
+                  codes.put(value, dictionary.size());
+                  dictionary.add(value);
+               }//end if
+            }//end for
+            varint(out, dictionary.size());
+            for (Object value : dictionary)
+               out.writeUTF((String) value);
+            for (Object value : values)
+               if (value != null)
+                  varint(out, codes.get(value));
+            return;
+         }//end if
+         long previous = 0;
+         for (Object value : values){
+            if (value == null)
+               continue;
+            long v = (Long) value;
+            if (encoding == CENTS){
+               varint(out, zigzag(v));
+            }else{
+               // DELTA and TIME_DELTA: sorted or nearly sorted, so the steps are small
+               varint(out, zigzag(v - previous));
+               previous = v;
+            }//end if
+         }//end for
+      }
+
+      // nulls: which rows are null; otherwise the boolean values themselves
+      private static void bits(DataOutputStream out, List<Object> values, boolean nulls) throws IOException {
+         int current = 0;
+         for (int i = 0; i < values.size(); i++){
+            Object value = values.get(i);
+            boolean bit = nulls ? value == null : Boolean.TRUE.equals(value);
+            if (bit)
+               current |= 1 << (i & 7);
+            if ((i & 7) == 7){
+               out.write(current);
+               current = 0;
+            }//end if
+         }//end for
+         if ((values.size() & 7) != 0)
+            out.write(current);
+      }
+   }//end ColumnWriter
+
+   /*
+    * Decodes a file and prints it row by row, to check an export
+    **/
+   static void dump(File file) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16)));
+      try{
+         byte[] magic = new byte[MAGIC.length()];
+         in.readFully(magic);
+         if (!MAGIC.equals(new String(magic, "US-ASCII")))
+            throw new IOException(file + " is not a column file");
+         int rows = (int) readVarint(in);
+         int count = (int) readVarint(in);
+         String[] names = new String[count];
+         Object[][] columns = new Object[count][];
+         for (int c = 0; c < count; c++){
+            names[c] = in.readUTF();
+            columns[c] = readColumn(in, (int) readVarint(in), rows);
+         }//end for
+         StringBuilder line = new StringBuilder();
+         for (int c = 0; c < count; c++)
+            line.append(c > 0 ? ";" : "").append(names[c]);
+         System.out.println(line);
+         for (int r = 0; r < rows; r++){
+            line.setLength(0);
+            for (int c = 0; c < count; c++)
+               line.append(c > 0 ? ";" : "").append(columns[c][r] == null ? "" : columns[c][r]);
+            System.out.println(line);
+         }//end for
+      }finally{
+         in.close();
+      }//end try
+   }//end dump
+
+   private static Object[] readColumn(DataInputStream in, int encoding, int rows) throws IOException {
+      Object[] values = new Object[rows];
+      boolean[] bits = readBits(in, rows);
+      if (encoding == BITS){
+         for (int r = 0; r < rows; r++)
+            values[r] = bits[r];
+         return values;
+      }//end if
+      if (encoding == DICT){
+         String[] dictionary = new String[(int) readVarint(in)];
+         for (int i = 0; i < dictionary.length; i++)
+            dictionary[i] = in.readUTF();
+         for (int r = 0; r < rows; r++)
+            if (!bits[r])
+               values[r] = dictionary[(int) readVarint(in)];
+         return values;
+      }//end if
+      long previous = 0;
+      for (int r = 0; r < rows; r++){
+         if (bits[r])
+            continue;
+         long v = unzigzag(readVarint(in));
+         if (encoding == CENTS){
+            values[r] = BigDecimal.valueOf(v, 2);
+         }else{
+            previous += v;
+            values[r] = encoding == TIME_DELTA ? (Object) new Timestamp(previous) : (Object) previous;
+         }//end if
+      }//end for
+      return values;
+   }//end readColumn
+
+   private static boolean[] readBits(DataInputStream in, int rows) throws IOException {
+      boolean[] bits = new boolean[rows];
+      int current = 0;
+      for (int r = 0; r < rows; r++){
+         if ((r & 7) == 0)
+            current = in.readUnsignedByte();
+         bits[r] = (current & (1 << (r & 7))) != 0;
+      }//end for
+      return bits;
+   }//end readBits
+
+   static void varint(DataOutputStream out, long value) throws IOException {
+      while ((value & ~0x7FL) != 0){
+         out.write((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }//end while
+      out.write((int) value);
+   }//end varint
+
+   static long readVarint(DataInputStream in) throws IOException {
+      long value = 0;
+      for (int shift = 0; ; shift += 7){
+         int b = in.readUnsignedByte();
+         value |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }//end for
+   }//end readVarint
+
+   static long zigzag(long v) {
+      return (v << 1) ^ (v >> 63);
+   }//end zigzag
+
+   static long unzigzag(long v) {
+      return (v >>> 1) ^ -(v & 1);
+   }//end unzigzag
+
+   private static long readWatermark(File file) throws IOException {
+      if (!file.exists())
+         return 0;
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line = reader.readLine();
+         return line == null ? 0 : Long.parseLong(line.trim());
+      }finally{
+         reader.close();
+      }//end try
+   }//end readWatermark
+
+   private static void writeWatermark(File file, long orderid) throws IOException {
+      File partial = new File(file.getPath() + ".part");
+      FileWriter writer = new FileWriter(partial);
+      try{
+         writer.write(orderid + "\n");
+      }finally{
+         writer.close();
+      }//end try
+      file.delete();
+      if (!partial.renameTo(file))
+         throw new IOException("Could not write " + file);
+   }//end writeWatermark
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         stmt.execute(sql);
+      }finally{
+         stmt.close();
+      }//end try
+   }//end execute
+
+   private static String queryString(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery(sql);
+         return rs.next() ? rs.getString(1) : null;
+      }finally{
+         stmt.close();
+      }//end try
+   }//end queryString
+
+}//end OrderExporter
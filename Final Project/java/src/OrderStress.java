@@ -0,0 +1,136 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention test of order totals.
+ *
+ * Every thread is a register with its own connection. All of them add menu
+ * items to and delete items from one shared order through their CafeStore,
+ * which makes each change in one transaction with its total change. At the
+ * end the total of the order must equal the sum of the changes that
+ * committed, and the prices of the items left in it; a lost update shows
+ * up as a difference and the test exits with status 1.
+ *
+ * The test opens an order for a Customer and adds to their ranking, so it
+ * only runs against a scratch database, named again in -Dstress.scratch to
+ * confirm.
+ *
+ * Usage: java OrderStress <threads> <rounds> <dbname> <port> <user>
+ */
+public class OrderStress {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 5){
+         System.err.println("Usage: java OrderStress <threads> <rounds> <dbname> <port> <user>");
+         return;
+      }//end if
+      final int threads = Integer.parseInt(args[0]);
+      final int rounds = Integer.parseInt(args[1]);
+      final String dbname = args[2];
+      final String dbport = args[3];
+      final String user = args[4];
+      if (!dbname.equals(System.getProperty("stress.scratch"))){
+         System.err.println("The test writes to " + dbname + "; run it against a scratch database only,");
+         System.err.println("and confirm with -Dstress.scratch=" + dbname);
+         return;
+      }//end if
+
+      Class.forName("org.postgresql.Driver");
+      Cafe esql = new Cafe(dbname, dbport, user, "");
+
+      CafeStore store = esql.getStore();
+
+      List<List<String>> menu = store.getMenu();
+      List<List<String>> customer = esql.executeQueryAndReturnResult("SELECT login FROM Users WHERE type = 'Customer' LIMIT 1");
+      if (menu.isEmpty() || customer.isEmpty()){
+         System.err.println("The database needs a menu and a Customer");
+         return;
+      }//end if
+      final String[] items = new String[menu.size()];
+      final BigDecimal[] prices = new BigDecimal[menu.size()];
+      for (int i = 0; i < items.length; i++){
+         items[i] = menu.get(i).get(0);
+         prices[i] = new BigDecimal(menu.get(i).get(2));
+      }//end for
+
+      final int orderid = store.createOrder(customer.get(0).get(0));
+
+      // the committed changes, in cents
+      final AtomicLong expected = new AtomicLong();
+      final AtomicLong committed = new AtomicLong();
+      final AtomicLong failed = new AtomicLong();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch finished = new CountDownLatch(threads);
+
+      for (int t = 0; t < threads; t++){
+         final Random random = new Random(t);
+         new Thread(new Runnable(){
+            public void run(){
+               Cafe register = null;
+               try{
+                  register = new Cafe(dbname, dbport, user, "");
+                  start.await();
+                  for (int r = 0; r < rounds; r++)
+                     change(register.getStore(), random.nextInt(items.length), random.nextBoolean());
+               }catch (Exception e){
+                  System.err.println(e.getMessage());
+               }finally{
+                  if (register != null)
+                     register.cleanup();
+                  finished.countDown();
+               }//end try
+            }
+
+            void change(CafeStore register, int item, boolean add) {
+               try{
+                  if (add){
+                     register.addOrderItem(orderid, items[item]);
+                     expected.addAndGet(toCents(prices[item]));
+                  }else if (register.removeOrderItem(orderid, items[item]) != null){
+                     expected.addAndGet(-toCents(prices[item]));
+                  }//end if
+                  committed.incrementAndGet();
+               }catch (SQLException e){
+                  // item already in the order
+                  failed.incrementAndGet();
+               }//end try
+            }
+         }).start();
+      }//end for
+
+      long begin = System.nanoTime();
+      start.countDown();
+      finished.await();
+      double elapsed = (System.nanoTime() - begin) / 1e9;
+
+      long total = toCents(store.getOrderTotal(orderid));
+      String itemSum = String.format("SELECT COALESCE(SUM(m.price), 0) FROM ItemStatus s, Menu m WHERE s.itemName = m.itemName AND s.orderid = %d", orderid);
+      long itemCents = toCents(new BigDecimal(esql.executeQueryAndReturnResult(itemSum).get(0).get(0)));
+      // settled so the kitchen and the reports treat it like any other order
+      store.markOrderPaid(orderid);
+      esql.cleanup();
+
+      System.out.println(String.format("order              %d", orderid));
+      System.out.println(String.format("threads            %d", threads));
+      System.out.println(String.format("changes committed  %d", committed.get()));
+      System.out.println(String.format("changes failed     %d", failed.get()));
+      System.out.println(String.format("changes/sec        %.0f", committed.get() / elapsed));
+      System.out.println(String.format("expected total     %s", BigDecimal.valueOf(expected.get(), 2)));
+      System.out.println(String.format("order total        %s", BigDecimal.valueOf(total, 2)));
+      System.out.println(String.format("items in order     %s", BigDecimal.valueOf(itemCents, 2)));
+      if (total != expected.get() || total != itemCents){
+         System.out.println("FAILED: the order total lost updates");
+         System.exit(1);
+      }//end if
+      System.out.println("OK");
+   }//end main
+
+   static long toCents(BigDecimal amount) {
+      return amount.movePointRight(2).longValueExact();
+   }//end toCents
+
+}//end OrderStress
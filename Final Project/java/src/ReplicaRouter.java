@@ -0,0 +1,340 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends reads to streaming replicas of the database and everything else to
+ * the primary.
+ *
+ * A read is a plain SELECT outside a transaction that takes no row locks
+ * and touches no sequence. Reads are spread round robin over the replicas
+ * that are up, are not too far behind the primary, and have replayed the
+ * last write of the session asking, so a session always sees its own
+ * changes. When no replica qualifies, or one fails, the read goes to the
+ * primary.
+ *
+ * A monitor thread asks every replica how far it has replayed (and the
+ * primary how far it has written) every cafe.replica.check.ms, marks
+ * replicas that do not answer as down and reconnects them once they do.
+ * Needs PostgreSQL 10 or later on both sides.
+ */
+public class ReplicaRouter {
+
+   /**
+    * What a session (a terminal, or a benchmark thread) has written, as
+    * the primary WAL position after its last write.
+    */
+   public static final class Session {
+      private volatile long _lastWrite = 0;
+
+      void wrote(long lsn) {
+         if (lsn > _lastWrite)
+            _lastWrite = lsn;
+      }
+   }//end Session
+
+   /*
+    * One replica: its pool, and what the monitor last saw of it
+    **/
+   static final class Replica {
+      final String name;
+      final String url;
+      volatile RequestScheduler pool;
+      volatile long replayed = 0;
+      volatile boolean up = false;
+      Connection monitor;
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+
+      Replica(String name, String url) {
+         this.name = name;
+         this.url = url;
+      }
+   }//end Replica
+
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final ThreadLocal<Session> _session = new ThreadLocal<Session>();
+   private final AtomicInteger _next = new AtomicInteger();
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final String _primaryUrl;
+   private final String _user;
+   private final String _passwd;
+   private final int _poolSize;
+   private final int _weight;
+   private final int _queueCapacity;
+   private final long _budgetMillis;
+   private final long _maxLagBytes;
+   private final long _checkMillis;
+   private final Thread _monitor;
+   private Connection _primaryMonitor = null;
+   private volatile long _primaryWritten = 0;
+   private volatile boolean _closed = false;
+
+   /**
+    * Starts monitoring the replicas; their pools open once they answer.
+    *
+    * @param primaryUrl JDBC URL of the primary
+    * @param replicas comma separated host:port of the replicas, same database
+    * @param poolSize connections to each replica
+    * @param maxLagBytes how far behind the primary a replica may be and still serve reads
+    * @param checkMillis how often the replicas are checked
+    */
+   public ReplicaRouter(String primaryUrl, String dbname, String user, String passwd, String replicas,
+                        int poolSize, int weight, int queueCapacity, long budgetMillis,
+                        long maxLagBytes, long checkMillis) {
+      _primaryUrl = primaryUrl;
+      _user = user;
+      _passwd = passwd;
+      _poolSize = poolSize;
+      _weight = weight;
+      _queueCapacity = queueCapacity;
+      _budgetMillis = budgetMillis;
+      _maxLagBytes = maxLagBytes;
+      _checkMillis = checkMillis;
+      for (String replica : replicas.split(",")){
+         replica = replica.trim();
+         if (!replica.isEmpty())
+            _replicas.add(new Replica(replica, "jdbc:postgresql://" + replica + "/" + dbname));
+      }//end for
+      check();
+      _monitor = new Thread(new Runnable(){
+         public void run(){
+            while (!_closed){
+               try{
+                  Thread.sleep(_checkMillis);
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+               check();
+            }//end while
+         }
+      }, "cafe-replica-monitor");
+      _monitor.setDaemon(true);
+      _monitor.start();
+   }//end ReplicaRouter
+
+   /**
+    * A SELECT or WITH that names a write anywhere, with or without
+    * RETURNING, counts as a write: a data-modifying CTE, SELECT ... INTO,
+    * a locking clause. The same word inside a string literal only costs
+    * the statement a trip to the primary.
+    *
+    * @return true if sql only reads and may run on a replica
+    */
+   public static boolean isRead(String sql) {
+      String s = sql.trim().toLowerCase();
+      if (!s.startsWith("select") && !s.startsWith("with"))
+         return false;
+      return !s.matches("(?s).*\\b(insert|update|delete|merge|into)\\b.*")
+         && !s.matches("(?s).*\\bfor\\s+(share|key\\s+share)\\b.*")
+         && !s.matches("(?s).*\\b(nextval|currval|lastval|setval|pg_advisory\\w*|pg_current_wal\\w*)\\s*\\(.*");
+   }//end isRead
+
+   /**
+    * @return the calling thread's session
+    */
+   public Session session() {
+      Session session = _session.get();
+      if (session == null){
+         session = new Session();
+         _session.set(session);
+      }//end if
+      return session;
+   }//end session
+
+   /**
+    * Makes session the calling thread's, so writes done for it on another
+    * thread count as its own.
+    *
+    * @return the session that was the thread's, to be passed back here afterwards
+    */
+   public Session adopt(Session session) {
+      Session previous = _session.get();
+      if (session == null)
+         _session.remove();
+      else
+         _session.set(session);
+      return previous;
+   }//end adopt
+
+   /**
+    * Picks a replica for a read of session.
+    *
+    * @return its pool, or null if the read has to go to the primary
+    */
+   public RequestScheduler pick(Session session) {
+      int count = _replicas.size();
+      int start = _next.getAndIncrement();
+      for (int i = 0; i < count; i++){
+         Replica replica = _replicas.get(((start + i) % count + count) % count);
+         RequestScheduler pool = replica.pool;
+         if (pool == null || !replica.up)
+            continue;
+         if (replica.replayed < session._lastWrite)
+            continue;
+         if (_primaryWritten - replica.replayed > _maxLagBytes)
+            continue;
+         replica.reads.incrementAndGet();
+         return pool;
+      }//end for
+      _primaryReads.incrementAndGet();
+      return null;
+   }//end pick
+
+   /**
+    * A read on a replica failed. If the replica's connection is gone it
+    * gets no more reads until the monitor sees it answer again.
+    *
+    * @return true if the read may be run again on the primary: the replica
+    *         is down, too busy, or cancelled it in a recovery conflict.
+    *         Any other error is the statement's own and goes back to the
+    *         caller as it is.
+    */
+   public boolean failed(RequestScheduler pool, SQLException e) {
+      boolean down = isConnectionFailure(e);
+      boolean retry = down || e instanceof RequestScheduler.BusyException
+         || String.valueOf(e.getMessage()).contains("conflict with recovery");
+      if (!retry)
+         return false;
+      for (Replica replica : _replicas){
+         if (replica.pool == pool){
+            replica.failures.incrementAndGet();
+            if (down)
+               replica.up = false;
+         }//end if
+      }//end for
+      return true;
+   }//end failed
+
+   /**
+    * @return true if e means the connection to the server is lost: SQLState
+    *         class 08, or the server shutting down or starting up (57P0x).
+    *         pg73jdbc3 sets no SQLState, so its connection messages count too.
+    */
+   static boolean isConnectionFailure(SQLException e) {
+      String state = e.getSQLState();
+      if (state != null)
+         return state.startsWith("08") || state.startsWith("57P0");
+      String message = String.valueOf(e.getMessage());
+      return message.contains("I/O error") || message.contains("IO erro")
+         || message.contains("has broken the connection") || message.contains("Connection is closed")
+         || message.contains("Connection refused") || message.contains("connection attempt failed")
+         || message.contains("terminating connection") || message.contains("the database system is");
+   }//end isConnectionFailure
+
+   /**
+    * Records the primary WAL position after a committed write of session.
+    *
+    * @param conn a primary connection, not inside a transaction
+    */
+   public void wrote(Session session, Connection conn) throws SQLException {
+      long lsn = lsn(conn, "SELECT pg_current_wal_lsn()");
+      session.wrote(lsn);
+      if (lsn > _primaryWritten)
+         _primaryWritten = lsn;
+   }//end wrote
+
+   /**
+    * @return each replica's state, how far behind it is and how many reads it took
+    */
+   public String stats() {
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%-22s %5s %12s %10s %9s%n", "replica", "state", "lag bytes", "reads", "failures"));
+      for (Replica replica : _replicas){
+         out.append(String.format("%-22s %5s %12d %10d %9d%n", replica.name,
+                                  replica.up && replica.pool != null ? "up" : "down",
+                                  Math.max(0, _primaryWritten - replica.replayed),
+                                  replica.reads.get(), replica.failures.get()));
+      }//end for
+      out.append(String.format("%-22s %5s %12s %10d%n", "primary (fallback)", "", "", _primaryReads.get()));
+      return out.toString();
+   }//end stats
+
+   /**
+    * Stops the monitor and closes every replica connection.
+    */
+   public void close() {
+      _closed = true;
+      _monitor.interrupt();
+      synchronized (this){
+         for (Replica replica : _replicas){
+            if (replica.pool != null)
+               replica.pool.close();
+            closeQuietly(replica.monitor);
+         }//end for
+         closeQuietly(_primaryMonitor);
+      }//end synchronized
+   }//end close
+
+   /*
+    * One round of the monitor: the primary's position, then each replica's
+    **/
+   private synchronized void check() {
+      if (_closed)
+         return;
+      try{
+         if (_primaryMonitor == null)
+            _primaryMonitor = DriverManager.getConnection(_primaryUrl, _user, _passwd);
+         long written = lsn(_primaryMonitor, "SELECT pg_current_wal_lsn()");
+         if (written > _primaryWritten)
+            _primaryWritten = written;
+      }catch (SQLException e){
+         closeQuietly(_primaryMonitor);
+         _primaryMonitor = null;
+      }//end try
+      for (Replica replica : _replicas){
+         try{
+            if (replica.monitor == null)
+               replica.monitor = DriverManager.getConnection(replica.url, _user, _passwd);
+            replica.replayed = lsn(replica.monitor, "SELECT pg_last_wal_replay_lsn()");
+            if (replica.pool == null || !replica.up){
+               // a failed read may have left the old pool with dead connections
+               RequestScheduler old = replica.pool;
+               replica.pool = new RequestScheduler(replica.url, _user, _passwd, _poolSize, _weight,
+                                                   _queueCapacity, _budgetMillis, 1);
+               if (old != null)
+                  old.close();
+            }//end if
+            replica.up = true;
+         }catch (SQLException e){
+            replica.up = false;
+            closeQuietly(replica.monitor);
+            replica.monitor = null;
+         }//end try
+      }//end for
+   }//end check
+
+   /*
+    * Runs a query returning a WAL position such as 16/B374D848, as a number
+    **/
+   private static long lsn(Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery(query);
+         String value = rs.next() ? rs.getString(1) : null;
+         if (value == null)
+            throw new SQLException("Not a streaming replica");
+         int slash = value.indexOf('/');
+         return (Long.parseLong(value.substring(0, slash), 16) << 32) | Long.parseLong(value.substring(slash + 1), 16);
+      }finally{
+         stmt.close();
+      }//end try
+   }//end lsn
+
+   private static void closeQuietly(Connection conn) {
+      if (conn == null)
+         return;
+      try{
+         conn.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end ReplicaRouter
@@ -0,0 +1,383 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs database work for every session of the process on a fixed pool of
+ * connections, one worker thread per connection.
+ *
+ * Work comes in on two lanes. INTERACTIVE is order traffic from the
+ * registers, BACKGROUND is reports and bulk changes. Each lane has its own
+ * bounded queue. When both have work waiting, workers take `weight`
+ * interactive requests for every background one, and background work never
+ * holds more than its share of the connections, and never the last one, so
+ * a heavy report cannot take the registers' connections away. That takes
+ * at least MIN_POOL connections; smaller pools are raised to it.
+ *
+ * Past the latency budget a request is shed: it fails with BusyException
+ * instead of waiting longer, either up front when the queue is full or
+ * looks too long, or when a worker finally picks it up too late.
+ *
+ * Work can also be handed over without waiting for it (submitAsync); the
+ * callbacks on its result run on a few threads of their own, so they never
+ * hold a connection's worker.
+ */
+public class RequestScheduler {
+
+   public enum Lane { INTERACTIVE, BACKGROUND }
+
+   // one connection for background work and one always kept for interactive
+   public static final int MIN_POOL = 2;
+
+   /**
+    * A piece of database work run on one pooled connection.
+    */
+   public interface Work<T> {
+      T run(Connection conn) throws SQLException;
+   }//end Work
+
+   /**
+    * Thrown instead of running a request when the cafe is too busy.
+    */
+   public static class BusyException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      public BusyException(String reason) {
+         super("The cafe is busy right now, please try again in a moment (" + reason + ")");
+      }
+   }//end BusyException
+
+   private final Object _lock = new Object();
+   private final ArrayDeque<Task<?>> _interactive;
+   private final ArrayDeque<Task<?>> _background;
+   private final int _queueCapacity;
+   private final int _weight;
+   private final int _maxBackground;
+   private final long _budgetNanos;
+   private final List<Connection> _connections = new ArrayList<Connection>();
+   private final List<Thread> _workers = new ArrayList<Thread>();
+   private final ExecutorService _callbacks;
+   private final LaneStats[] _stats = { new LaneStats(), new LaneStats() };
+
+   // guarded by _lock
+   private int _streak = 0;
+   private int _backgroundRunning = 0;
+   private boolean _closed = false;
+
+   /**
+    * Opens the pool and starts its workers.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param poolSize number of connections, and of worker threads, at least MIN_POOL
+    * @param weight interactive requests taken per background request
+    * @param queueCapacity most requests waiting in each lane
+    * @param budgetMillis longest a request may wait before it is shed
+    * @param callbackThreads threads running callbacks of submitAsync results
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public RequestScheduler(String url, String user, String passwd, int poolSize,
+                           int weight, int queueCapacity, long budgetMillis,
+                           int callbackThreads) throws SQLException {
+      _weight = Math.max(1, weight);
+      _queueCapacity = queueCapacity;
+      _interactive = new ArrayDeque<Task<?>>(queueCapacity);
+      _background = new ArrayDeque<Task<?>>(queueCapacity);
+      poolSize = Math.max(MIN_POOL, poolSize);
+      _maxBackground = Math.max(1, Math.min(poolSize - 1, poolSize / (_weight + 1)));
+      _budgetNanos = budgetMillis * 1000000L;
+      final AtomicInteger callbackCount = new AtomicInteger();
+      _callbacks = Executors.newFixedThreadPool(Math.max(1, callbackThreads), new ThreadFactory(){
+         public Thread newThread(final Runnable task){
+            Thread thread = new Thread(new Runnable(){
+               public void run(){
+                  CafeFuture.markCallbackThread();
+                  task.run();
+               }
+            }, "cafe-async-" + callbackCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      try{
+         for (int i = 0; i < poolSize; i++)
+            _connections.add(DriverManager.getConnection(url, user, passwd));
+      }catch (SQLException e){
+         close();
+         throw e;
+      }//end try
+      for (int i = 0; i < poolSize; i++){
+         final Connection conn = _connections.get(i);
+         Thread worker = new Thread(new Runnable(){
+            public void run(){
+               work(conn);
+            }
+         }, "cafe-db-" + i);
+         worker.setDaemon(true);
+         worker.start();
+         _workers.add(worker);
+      }//end for
+   }//end RequestScheduler
+
+   /**
+    * Queues the work on a lane and waits for a worker to run it.
+    *
+    * @return what the work returned
+    * @throws BusyException when the request was shed
+    * @throws java.sql.SQLException when the work itself failed
+    */
+   public <T> T submit(Lane lane, Work<T> work) throws SQLException {
+      Task<T> task = new Task<T>(lane, work, CafeFuture.DIRECT);
+      enqueue(task);
+      return task.future.join();
+   }//end submit
+
+   /**
+    * Queues the work on a lane without waiting for it.
+    *
+    * @return the future result, failed with BusyException if the request
+    *         was shed
+    */
+   public <T> CafeFuture<T> submitAsync(Lane lane, Work<T> work) {
+      Task<T> task = new Task<T>(lane, work, _callbacks);
+      try{
+         enqueue(task);
+      }catch (SQLException e){
+         task.fail(e);
+      }//end try
+      return task.future;
+   }//end submitAsync
+
+   /**
+    * @return the threads callbacks on submitAsync results run on, for
+    *         futures made elsewhere that should behave the same, and for
+    *         work that waits on the pool without holding a connection
+    */
+   public Executor callbacks() {
+      return _callbacks;
+   }//end callbacks
+
+   private void enqueue(Task<?> task) throws SQLException {
+      Lane lane = task.lane;
+      LaneStats stats = _stats[lane.ordinal()];
+      synchronized (_lock){
+         if (_closed)
+            throw new SQLException("Database connections are closed");
+         ArrayDeque<Task<?>> queue = queueOf(lane);
+         stats.submitted++;
+         if (queue.size() >= _queueCapacity){
+            stats.shed++;
+            throw new BusyException(lane.name().toLowerCase() + " queue is full");
+         }//end if
+         // shed up front if the queue ahead would already eat the budget
+         int servers = lane == Lane.BACKGROUND ? _maxBackground : _connections.size();
+         long expected = stats.averageServiceNanos() * (queue.size() + 1) / servers;
+         if (stats.completed > 100 && expected > _budgetNanos){
+            stats.shed++;
+            throw new BusyException("about " + expected / 1000000 + " ms wait");
+         }//end if
+         queue.addLast(task);
+         stats.maxDepth = Math.max(stats.maxDepth, queue.size());
+         _lock.notifyAll();
+      }//end synchronized
+   }//end enqueue
+
+   /**
+    * @return queue depth, wait and shed numbers for each lane
+    */
+   public String stats() {
+      StringBuilder out = new StringBuilder();
+      synchronized (_lock){
+         out.append(String.format("connections %d (background at most %d, weight %d:1)%n",
+                                  _connections.size(), _maxBackground, _weight));
+         out.append(String.format("%-12s %6s %10s %10s %8s %9s %9s %9s %9s%n",
+                                  "lane", "depth", "submitted", "completed", "shed",
+                                  "maxdepth", "avg wait", "p99 wait", "max wait"));
+         for (Lane lane : Lane.values()){
+            LaneStats s = _stats[lane.ordinal()];
+            out.append(String.format("%-12s %6d %10d %10d %8d %9d %7.1fms %7.1fms %7.1fms%n",
+                                     lane.name().toLowerCase(), queueOf(lane).size(), s.submitted,
+                                     s.completed, s.shed, s.maxDepth, s.averageWaitNanos() / 1e6,
+                                     s.waitPercentileNanos(0.99) / 1e6, s.maxWaitNanos / 1e6));
+         }//end for
+      }//end synchronized
+      return out.toString();
+   }//end stats
+
+   /**
+    * Fails whatever is still queued and closes the connections.
+    */
+   public void close() {
+      List<Task<?>> pending = new ArrayList<Task<?>>();
+      synchronized (_lock){
+         _closed = true;
+         pending.addAll(_interactive);
+         pending.addAll(_background);
+         _interactive.clear();
+         _background.clear();
+         _lock.notifyAll();
+      }//end synchronized
+      for (Task<?> task : pending)
+         task.fail(new SQLException("Database connections are closed"));
+      for (Thread worker : _workers)
+         worker.interrupt();
+      _callbacks.shutdown();
+      for (Connection conn : _connections){
+         try{
+            conn.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end for
+   }//end close
+
+   private void work(Connection conn) {
+      while (true){
+         Task<?> task;
+         synchronized (_lock){
+            while ((task = next()) == null){
+               if (_closed)
+                  return;
+               try{
+                  _lock.wait();
+               }catch (InterruptedException e){
+                  if (_closed)
+                     return;
+               }//end try
+            }//end while
+            if (task.lane == Lane.BACKGROUND)
+               _backgroundRunning++;
+         }//end synchronized
+
+         long started = System.nanoTime();
+         long waited = started - task.queued;
+         boolean late = waited > _budgetNanos;
+         if (late)
+            task.fail(new BusyException("waited " + waited / 1000000 + " ms"));
+         else
+            task.run(conn);
+         long finished = System.nanoTime();
+
+         synchronized (_lock){
+            LaneStats stats = _stats[task.lane.ordinal()];
+            stats.recordWait(waited);
+            if (late){
+               stats.shed++;
+            }else{
+               stats.completed++;
+               stats.serviceNanos += finished - started;
+            }//end if
+            if (task.lane == Lane.BACKGROUND){
+               _backgroundRunning--;
+               // a background slot opened up, another worker may be waiting on it
+               _lock.notifyAll();
+            }//end if
+         }//end synchronized
+      }//end while
+   }//end work
+
+   // caller holds _lock
+   private Task<?> next() {
+      boolean backgroundReady = !_background.isEmpty() && _backgroundRunning < _maxBackground;
+      if (!_interactive.isEmpty() && (!backgroundReady || _streak < _weight)){
+         _streak++;
+         return _interactive.pollFirst();
+      }//end if
+      if (backgroundReady){
+         _streak = 0;
+         return _background.pollFirst();
+      }//end if
+      return null;
+   }//end next
+
+   private ArrayDeque<Task<?>> queueOf(Lane lane) {
+      return lane == Lane.INTERACTIVE ? _interactive : _background;
+   }//end queueOf
+
+   /*
+    * One queued request and the future its caller waits on
+    **/
+   static final class Task<T> {
+      final Lane lane;
+      final Work<T> work;
+      final long queued = System.nanoTime();
+      final CafeFuture<T> future;
+
+      Task(Lane lane, Work<T> work, Executor callbacks) {
+         this.lane = lane;
+         this.work = work;
+         this.future = new CafeFuture<T>(callbacks);
+      }
+
+      void run(Connection conn) {
+         try{
+            future.complete(work.run(conn));
+         }catch (SQLException e){
+            future.fail(e);
+         }catch (RuntimeException e){
+            future.fail(new SQLException(e.toString()));
+         }catch (Error e){
+            // the caller is told, and the worker lives on to serve the others
+            future.fail(new SQLException(e.toString()));
+         }//end try
+      }
+
+      void fail(SQLException e) {
+         future.fail(e);
+      }
+   }//end Task
+
+   /*
+    * Counters of one lane, guarded by the scheduler lock. Waits go into
+    * power of two microsecond buckets for the percentiles.
+    **/
+   static final class LaneStats {
+      long submitted;
+      long completed;
+      long shed;
+      int maxDepth;
+      long serviceNanos;
+      long waitNanos;
+      long maxWaitNanos;
+      long waits;
+      final long[] buckets = new long[40];
+
+      void recordWait(long nanos) {
+         waits++;
+         waitNanos += nanos;
+         maxWaitNanos = Math.max(maxWaitNanos, nanos);
+         long micros = Math.max(1, nanos / 1000);
+         buckets[63 - Long.numberOfLeadingZeros(micros)]++;
+      }
+
+      long averageServiceNanos() {
+         return completed == 0 ? 0 : serviceNanos / completed;
+      }
+
+      long averageWaitNanos() {
+         return waits == 0 ? 0 : waitNanos / waits;
+      }
+
+      // upper edge of the bucket the percentile falls in
+      long waitPercentileNanos(double p) {
+         long rank = (long) Math.ceil(waits * p);
+         long seen = 0;
+         for (int i = 0; i < buckets.length; i++){
+            seen += buckets[i];
+            if (seen >= rank && seen > 0)
+               return Math.min(maxWaitNanos, (2L << i) * 1000);
+         }//end for
+         return 0;
+      }
+   }//end LaneStats
+
+}//end RequestScheduler
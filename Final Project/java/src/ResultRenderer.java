@@ -0,0 +1,257 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes query results to one buffered writer as they are read.
+ *
+ * TABLE lines columns up a page (cafe.page rows, default 25) at a time,
+ * cutting values longer than cafe.column.width (default 32) and repeating
+ * the header on every page, so only one page is ever held. CSV (RFC 4180)
+ * and JSON (an array of objects, one per line) hold no rows at all, so an
+ * export of millions of rows runs in constant memory.
+ */
+public class ResultRenderer {
+
+   public enum Format { TABLE, CSV, JSON }
+
+   static final int PAGE = Math.max(1, Integer.getInteger("cafe.page", 25));
+   static final int WIDTH = Math.max(4, Integer.getInteger("cafe.column.width", 32));
+
+   private final Format _format;
+   private final Writer _out;
+   private String[] _columns;
+   private boolean[] _numeric;
+   private boolean[] _bool;
+   private final List<String[]> _page = new ArrayList<String[]>(PAGE);
+   private long _rows = 0;
+
+   public ResultRenderer(Format format, Writer out) {
+      this._format = format;
+      this._out = out;
+   }//end ResultRenderer
+
+   /**
+    * @return a buffered writer on standard out; flush it, do not close it
+    */
+   public static Writer console() {
+      return new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+   }//end console
+
+   /**
+    * Streams every row of rs.
+    *
+    * @return the number of rows written
+    */
+   public static long render(ResultSet rs, Format format, Writer out) throws SQLException, IOException {
+      ResultRenderer renderer = new ResultRenderer(format, out);
+      renderer.start(rs.getMetaData());
+      renderer.rows(rs);
+      return renderer.finish();
+   }//end render
+
+   /**
+    * Writes rows already fetched, every value as text.
+    *
+    * @return the number of rows written
+    */
+   public static long render(String[] columns, List<List<String>> rows, Format format, Writer out) throws IOException {
+      ResultRenderer renderer = new ResultRenderer(format, out);
+      renderer.start(columns, new boolean[columns.length], new boolean[columns.length]);
+      for (List<String> row : rows)
+         renderer.row(row.toArray(new String[row.size()]));
+      return renderer.finish();
+   }//end render
+
+   /**
+    * Starts the output with the columns of a result, typed from its metadata.
+    */
+   public void start(ResultSetMetaData rsmd) throws SQLException, IOException {
+      int numCol = rsmd.getColumnCount();
+      String[] columns = new String[numCol];
+      boolean[] numeric = new boolean[numCol];
+      boolean[] bool = new boolean[numCol];
+      for (int i = 0; i < numCol; i++){
+         columns[i] = rsmd.getColumnName(i + 1);
+         int type = rsmd.getColumnType(i + 1);
+         numeric[i] = type == Types.INTEGER || type == Types.BIGINT || type == Types.SMALLINT
+                   || type == Types.NUMERIC || type == Types.DECIMAL || type == Types.REAL
+                   || type == Types.DOUBLE || type == Types.FLOAT;
+         bool[i] = type == Types.BOOLEAN || type == Types.BIT;
+      }//end for
+      start(columns, numeric, bool);
+   }//end start
+
+   /**
+    * @param numeric columns written as JSON numbers
+    * @param bool columns written as JSON true/false
+    */
+   public void start(String[] columns, boolean[] numeric, boolean[] bool) throws IOException {
+      _columns = columns;
+      _numeric = numeric;
+      _bool = bool;
+      if (_format == Format.CSV){
+         for (int i = 0; i < columns.length; i++){
+            if (i > 0)
+               _out.write(',');
+            csv(columns[i]);
+         }//end for
+         _out.write("\r\n");
+      }else if (_format == Format.JSON){
+         _out.write("[");
+      }//end if
+   }//end start
+
+   /**
+    * Writes every row of rs, which may be one batch of a longer result.
+    *
+    * @return the number of rows in rs
+    */
+   public int rows(ResultSet rs) throws SQLException, IOException {
+      int numCol = _columns.length;
+      int count = 0;
+      while (rs.next()){
+         String[] values = new String[numCol];
+         for (int i = 0; i < numCol; i++)
+            values[i] = rs.getString(i + 1);
+         row(values);
+         count++;
+      }//end while
+      return count;
+   }//end rows
+
+   public void row(String[] values) throws IOException {
+      switch (_format){
+         case TABLE:
+            _page.add(values);
+            if (_page.size() == PAGE)
+               flushPage();
+            break;
+         case CSV:
+            for (int i = 0; i < values.length; i++){
+               if (i > 0)
+                  _out.write(',');
+               if (values[i] != null)
+                  csv(values[i]);
+            }//end for
+            _out.write("\r\n");
+            break;
+         case JSON:
+            _out.write(_rows == 0 ? "\n{" : ",\n{");
+            for (int i = 0; i < values.length; i++){
+               if (i > 0)
+                  _out.write(',');
+               json(_columns[i]);
+               _out.write(':');
+               if (values[i] == null)
+                  _out.write("null");
+               else if (_numeric[i])
+                  _out.write(values[i]);
+               else if (_bool[i])
+                  _out.write(values[i].startsWith("t") ? "true" : "false");
+               else
+                  json(values[i]);
+            }//end for
+            _out.write('}');
+            break;
+      }//end switch
+      _rows++;
+   }//end row
+
+   /**
+    * Writes what is left and flushes the writer.
+    *
+    * @return the number of rows written
+    */
+   public long finish() throws IOException {
+      if (_format == Format.TABLE)
+         flushPage();
+      else if (_format == Format.JSON)
+         _out.write(_rows == 0 ? "]\n" : "\n]\n");
+      _out.flush();
+      return _rows;
+   }//end finish
+
+   /*
+    * One page of the table: widths fit to this page's values, header,
+    * a rule, then the rows
+    **/
+   private void flushPage() throws IOException {
+      if (_page.isEmpty())
+         return;
+      int[] widths = new int[_columns.length];
+      for (int i = 0; i < _columns.length; i++)
+         widths[i] = Math.min(WIDTH, _columns[i].length());
+      for (String[] values : _page)
+         for (int i = 0; i < values.length; i++)
+            widths[i] = Math.max(widths[i], Math.min(WIDTH, String.valueOf(values[i]).length()));
+
+      if (_rows >= PAGE)
+         _out.write('\n');
+      line(_columns, widths);
+      for (int i = 0; i < widths.length; i++){
+         if (i > 0)
+            _out.write("-+-");
+         for (int j = 0; j < widths[i]; j++)
+            _out.write('-');
+      }//end for
+      _out.write('\n');
+      for (String[] values : _page)
+         line(values, widths);
+      _page.clear();
+      // a page at a time, so a slow terminal shows progress
+      _out.flush();
+   }//end flushPage
+
+   private void line(String[] values, int[] widths) throws IOException {
+      for (int i = 0; i < widths.length; i++){
+         if (i > 0)
+            _out.write(" | ");
+         String value = String.valueOf(values[i]);
+         if (value.length() > widths[i])
+            value = value.substring(0, widths[i] - 3) + "...";
+         _out.write(value);
+         // no trailing blanks after the last column
+         if (i < widths.length - 1)
+            for (int j = value.length(); j < widths[i]; j++)
+               _out.write(' ');
+      }//end for
+      _out.write('\n');
+   }//end line
+
+   private void csv(String value) throws IOException {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0){
+         _out.write(value);
+         return;
+      }//end if
+      _out.write('"');
+      _out.write(value.replace("\"", "\"\""));
+      _out.write('"');
+   }//end csv
+
+   private void json(String value) throws IOException {
+      _out.write('"');
+      for (int i = 0; i < value.length(); i++){
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\'){
+            _out.write('\\');
+            _out.write(c);
+         }else if (c == '\n'){
+            _out.write("\\n");
+         }else if (c < 0x20){
+            _out.write(String.format("\\u%04x", (int) c));
+         }else{
+            _out.write(c);
+         }//end if
+      }//end for
+      _out.write('"');
+   }//end json
+
+}//end ResultRenderer
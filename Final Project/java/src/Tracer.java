@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight tracing of what the cafe does, from the menu action down to
+ * the SQL it runs.
+ *
+ * Every user action (PlaceOrder, LogIn, ...) is a span, and every statement
+ * run for it is a child span carrying the statement with its literals taken
+ * out, the rows it returned or changed and how long it took. Time in an
+ * action that is in none of its statements went to the user or the
+ * application.
+ *
+ * Finished spans go into a ring buffer of the last cafe.trace.buffer spans
+ * (default 4096), see recent(). A cafe.trace.sample share of the actions
+ * (default 0, none) is also appended to cafe.trace.file (default
+ * cafe-trace.json) in the Chrome trace event format, which chrome://tracing
+ * and Perfetto open as is.
+ */
+public class Tracer {
+
+   static final int CAPACITY = Math.max(16, Integer.getInteger("cafe.trace.buffer", 4096));
+   static final double SAMPLE = Double.parseDouble(System.getProperty("cafe.trace.sample", "0"));
+   static final String FILE = System.getProperty("cafe.trace.file", "cafe-trace.json");
+
+   private static final Span[] RING = new Span[CAPACITY];
+   private static final AtomicLong FINISHED = new AtomicLong();
+   private static final AtomicLong IDS = new AtomicLong();
+   private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+   // trace timestamps are wall clock microseconds, measured with nanoTime
+   private static final long BASE_NANOS = System.nanoTime();
+   private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+
+   private static Writer _export = null;
+
+   /**
+    * One timed piece of work. Ended exactly once, by the thread that began it.
+    */
+   public static final class Span {
+      final long id = IDS.incrementAndGet();
+      final Span parent;
+      final Span root;
+      final String name;
+      final String thread = Thread.currentThread().getName();
+      final long tid = Thread.currentThread().getId();
+      final long start = System.nanoTime();
+      long duration = -1;
+      String sql;
+      long rows = -1;
+      String error;
+
+      // kept on the root: totals of its statements, and its spans if sampled
+      final AtomicLong statements;
+      final AtomicLong statementNanos;
+      final List<Span> sampled;
+
+      Span(String name, Span parent) {
+         this.name = name;
+         this.parent = parent;
+         this.root = parent == null ? this : parent.root;
+         if (parent == null){
+            statements = new AtomicLong();
+            statementNanos = new AtomicLong();
+            sampled = SAMPLE > 0 && ThreadLocalRandom.current().nextDouble() < SAMPLE ? new ArrayList<Span>() : null;
+         }else{
+            statements = null;
+            statementNanos = null;
+            sampled = null;
+         }//end if
+      }
+
+      /**
+       * Records the statement this span ran, with its literals replaced by ?.
+       */
+      public Span sql(String statement) {
+         this.sql = template(statement);
+         return this;
+      }
+
+      public Span rows(long rows) {
+         this.rows = rows;
+         return this;
+      }
+
+      public Span error(String message) {
+         this.error = message;
+         return this;
+      }
+
+      /**
+       * Finishes the span and makes its parent current again.
+       */
+      public void end() {
+         if (duration >= 0)
+            return;
+         duration = System.nanoTime() - start;
+         if (CURRENT.get() == this)
+            CURRENT.set(parent);
+         if (sql != null){
+            root.statements.incrementAndGet();
+            root.statementNanos.addAndGet(duration);
+         }//end if
+         RING[(int) (FINISHED.getAndIncrement() % CAPACITY)] = this;
+         if (root.sampled != null){
+            synchronized (root.sampled){
+               root.sampled.add(this);
+            }//end synchronized
+            if (parent == null)
+               export(root.sampled);
+         }//end if
+      }
+
+      public long durationNanos() {
+         return duration;
+      }
+   }//end Span
+
+   /**
+    * Opens a span as a child of the calling thread's current span, or as a
+    * new trace if there is none, and makes it current.
+    */
+   public static Span begin(String name) {
+      Span span = new Span(name, CURRENT.get());
+      CURRENT.set(span);
+      return span;
+   }//end begin
+
+   /**
+    * @return the calling thread's current span, or null
+    */
+   public static Span current() {
+      return CURRENT.get();
+   }//end current
+
+   /**
+    * Makes span current on the calling thread, so work handed to another
+    * thread is traced under the span that handed it over.
+    *
+    * @return the span that was current, to be passed back here afterwards
+    */
+   public static Span adopt(Span span) {
+      Span previous = CURRENT.get();
+      if (span == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(span);
+      return previous;
+   }//end adopt
+
+   /**
+    * @return the last actions traced, oldest first, with how much of each
+    *         went to SQL and how much to everything else
+    */
+   public static String recent(int actions) {
+      long end = FINISHED.get();
+      List<Span> roots = new ArrayList<Span>();
+      for (long i = end - 1; i >= Math.max(0, end - CAPACITY) && roots.size() < actions; i--){
+         Span span = RING[(int) (i % CAPACITY)];
+         if (span != null && span.parent == null)
+            roots.add(0, span);
+      }//end for
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%-20s %10s %6s %10s %10s%n", "action", "total", "sql", "sql time", "other"));
+      for (Span root : roots){
+         long sqlNanos = root.statementNanos.get();
+         out.append(String.format("%-20s %8.1fms %6d %8.1fms %8.1fms%n", root.name, root.duration / 1e6,
+                                  root.statements.get(), sqlNanos / 1e6, (root.duration - sqlNanos) / 1e6));
+      }//end for
+      return out.toString();
+   }//end recent
+
+   /**
+    * Replaces the string and number literals of a statement with ?, so the
+    * same statement with different values reads the same, and passwords
+    * and phone numbers are not kept.
+    */
+   static String template(String statement) {
+      StringBuilder out = new StringBuilder(statement.length());
+      int n = statement.length();
+      for (int i = 0; i < n; i++){
+         char c = statement.charAt(i);
+         if (c == '\''){
+            // skip to the closing quote; '' is an escaped quote
+            i++;
+            while (i < n && !(statement.charAt(i) == '\'' && (i + 1 == n || statement.charAt(i + 1) != '\'')))
+               i += statement.charAt(i) == '\'' ? 2 : 1;
+            out.append('?');
+         }else if (Character.isDigit(c) && (i == 0 || !Character.isLetterOrDigit(statement.charAt(i - 1)) && statement.charAt(i - 1) != '_')){
+            while (i + 1 < n && (Character.isDigit(statement.charAt(i + 1)) || statement.charAt(i + 1) == '.'))
+               i++;
+            out.append('?');
+         }else{
+            out.append(c);
+         }//end if
+      }//end for
+      return out.toString();
+   }//end template
+
+   /*
+    * Appends a sampled trace as complete ("X") events. The file is a JSON
+    * array that is never closed, which the trace viewers accept.
+    **/
+   private static synchronized void export(List<Span> spans) {
+      try{
+         if (_export == null){
+            File file = new File(FILE);
+            boolean fresh = !file.exists() || file.length() == 0;
+            _export = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            if (fresh)
+               _export.write("[\n");
+         }//end if
+         StringBuilder out = new StringBuilder();
+         synchronized (spans){
+            for (Span span : spans){
+               out.append("{\"name\":\"").append(json(span.sql != null ? span.sql : span.name))
+                  .append("\",\"cat\":\"").append(span.sql != null ? "sql" : "action")
+                  .append("\",\"ph\":\"X\",\"ts\":").append(BASE_MICROS + (span.start - BASE_NANOS) / 1000)
+                  .append(",\"dur\":").append(span.duration / 1000)
+                  .append(",\"pid\":1,\"tid\":").append(span.tid)
+                  .append(",\"args\":{\"trace\":").append(span.root.id)
+                  .append(",\"span\":").append(span.id)
+                  .append(",\"thread\":\"").append(json(span.thread)).append('"');
+               if (span.rows >= 0)
+                  out.append(",\"rows\":").append(span.rows);
+               if (span.error != null)
+                  out.append(",\"error\":\"").append(json(span.error)).append('"');
+               out.append("}},\n");
+            }//end for
+         }//end synchronized
+         _export.write(out.toString());
+         _export.flush();
+      }catch (IOException e){
+         System.err.println("Could not write trace to " + FILE + ": " + e.getMessage());
+      }//end try
+   }//end export
+
+   private static String json(String value) {
+      StringBuilder out = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++){
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\')
+            out.append('\\').append(c);
+         else if (c < 0x20)
+            out.append(String.format("\\u%04x", (int) c));
+         else
+            out.append(c);
+      }//end for
+      return out.toString();
+   }//end json
+
+}//end Tracer
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/storage_report.sql > $DIR/../storage_before.txt
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_compact.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/storage_report.sql > $DIR/../storage_after.txt
+diff -y $DIR/../storage_before.txt $DIR/../storage_after.txt
@@ -0,0 +1,19 @@
+#!/bin/bash
+# Starts a streaming replica of the local database server, for trying out
+# read/write splitting: setup_replica.sh [replica port] [replica data dir]
+# The server on $PGPORT needs wal_level = replica (the default since 10)
+# and a pg_hba.conf line allowing local replication connections.
+REPLICA_PORT=${1:-$((PGPORT + 1))}
+REPLICA_DATA=${2:-/tmp/$USER/replica_$REPLICA_PORT}
+
+pg_ctl -D $REPLICA_DATA stop 2>/dev/null
+rm -rf $REPLICA_DATA
+mkdir -p $REPLICA_DATA
+chmod 700 $REPLICA_DATA
+
+# copy the primary and have the copy follow it (-R writes the standby settings)
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -R -X stream -P
+pg_ctl -D $REPLICA_DATA -o "-p $REPLICA_PORT" -l $REPLICA_DATA/logfile -w start
+
+psql -h localhost -p $REPLICA_PORT $USER"_DB" -c "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()"
+echo "Run the cafe with -Dcafe.replicas=localhost:$REPLICA_PORT"
@@ -5,3 +5,33 @@ ON orders
 CREATE INDEX index2
 ON ItemStatus
 ( orderid );
+
+CREATE INDEX useritemrank_login_score
+ON UserItemRank
+( login, score DESC, lastOrdered DESC );
+
+-- only the items waiting for the kitchen, oldest first
+CREATE INDEX itemstatus_waiting
+ON ItemStatus
+( lastUpdated )
+WHERE status = 'Hasn''t started';
+
+-- user directory search: login and phone digit prefixes, and trigram
+-- indexes for matches anywhere in them
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX users_login_prefix
+ON Users
+( LOWER(login) text_pattern_ops );
+
+CREATE INDEX users_phone_prefix
+ON Users
+( regexp_replace(phoneNum, '[^0-9]', '', 'g') text_pattern_ops );
+
+CREATE INDEX users_login_trgm
+ON Users
+USING GIN ( LOWER(login) gin_trgm_ops );
+
+CREATE INDEX users_phone_trgm
+ON Users
+USING GIN ( regexp_replace(phoneNum, '[^0-9]', '', 'g') gin_trgm_ops );
@@ -0,0 +1,92 @@
+-- Keeps UserItemRank up to date as orders and favorites change, then
+-- builds it once from the data already loaded.
+--
+-- score = times ordered + 5 if the item is a favorite
+--
+-- The order triggers are deferred to commit so the rank rows are only
+-- locked for the last moment of an order transaction.
+
+CREATE OR REPLACE FUNCTION rank_item_ordered() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO UserItemRank (login, itemName, timesOrdered, lastOrdered, score)
+	SELECT o.login, NEW.itemName, 1, NEW.lastUpdated, 1
+	FROM Orders o
+	WHERE o.orderid = NEW.orderid AND o.login IS NOT NULL
+	ON CONFLICT (login, itemName) DO UPDATE
+	SET timesOrdered = UserItemRank.timesOrdered + 1,
+		lastOrdered = GREATEST(UserItemRank.lastOrdered, EXCLUDED.lastOrdered),
+		score = UserItemRank.score + 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION rank_item_removed() RETURNS trigger AS $$
+BEGIN
+	UPDATE UserItemRank r
+	SET timesOrdered = r.timesOrdered - 1, score = r.score - 1
+	FROM Orders o
+	WHERE o.orderid = OLD.orderid AND r.login = o.login
+		AND r.itemName = OLD.itemName AND r.timesOrdered > 0;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION rank_favorite_added() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO UserItemRank (login, itemName, favorite, score)
+	VALUES (NEW.login, NEW.itemName, true, 5)
+	ON CONFLICT (login, itemName) DO UPDATE
+	SET favorite = true,
+		score = UserItemRank.score + CASE WHEN UserItemRank.favorite THEN 0 ELSE 5 END;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION rank_favorite_removed() RETURNS trigger AS $$
+BEGIN
+	UPDATE UserItemRank
+	SET favorite = false, score = score - 5
+	WHERE login = OLD.login AND itemName = OLD.itemName AND favorite;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS itemstatus_rank_insert ON ItemStatus;
+CREATE CONSTRAINT TRIGGER itemstatus_rank_insert
+AFTER INSERT ON ItemStatus
+DEFERRABLE INITIALLY DEFERRED
+FOR EACH ROW EXECUTE PROCEDURE rank_item_ordered();
+
+DROP TRIGGER IF EXISTS itemstatus_rank_delete ON ItemStatus;
+CREATE CONSTRAINT TRIGGER itemstatus_rank_delete
+AFTER DELETE ON ItemStatus
+DEFERRABLE INITIALLY DEFERRED
+FOR EACH ROW EXECUTE PROCEDURE rank_item_removed();
+
+DROP TRIGGER IF EXISTS favitems_rank_insert ON FavItems;
+CREATE TRIGGER favitems_rank_insert
+AFTER INSERT ON FavItems
+FOR EACH ROW EXECUTE PROCEDURE rank_favorite_added();
+
+DROP TRIGGER IF EXISTS favitems_rank_delete ON FavItems;
+CREATE TRIGGER favitems_rank_delete
+AFTER DELETE ON FavItems
+FOR EACH ROW EXECUTE PROCEDURE rank_favorite_removed();
+
+-- one pass over the existing history instead of firing per row on load
+TRUNCATE UserItemRank;
+INSERT INTO UserItemRank (login, itemName, timesOrdered, favorite, lastOrdered, score)
+SELECT login, itemName, SUM(timesOrdered), BOOL_OR(favorite), MAX(lastOrdered),
+	SUM(timesOrdered) + CASE WHEN BOOL_OR(favorite) THEN 5 ELSE 0 END
+FROM (
+	SELECT o.login, s.itemName, COUNT(*) AS timesOrdered, false AS favorite,
+		MAX(s.lastUpdated) AS lastOrdered
+	FROM ItemStatus s JOIN Orders o ON o.orderid = s.orderid
+	WHERE o.login IS NOT NULL
+	GROUP BY o.login, s.itemName
+	UNION ALL
+	SELECT login, itemName, 0, true, NULL FROM FavItems
+) AS history
+GROUP BY login, itemName;
+
+ANALYZE UserItemRank;
@@ -2,37 +2,64 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE FavItems;
+DROP TABLE UserItemRank;
+DROP TYPE user_type;
+DROP TYPE item_status;
+
+-- small enums instead of padded char columns, 4 bytes per row on disk
+CREATE TYPE user_type AS ENUM ('Customer', 'Employee', 'Manager');
+CREATE TYPE item_status AS ENUM ('Hasn''t started', 'Started', 'Finished');
 
 CREATE TABLE Users(
-	login char(50) UNIQUE NOT NULL, 
-	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
-	favItems char(400),
-	type char(8) NOT NULL,
+	login varchar(50) UNIQUE NOT NULL,
+	phoneNum varchar(16) UNIQUE,
+	password varchar(50) NOT NULL,
+	type user_type NOT NULL,
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
-	itemName char(50) UNIQUE NOT NULL,
-	type char(20) NOT NULL,
-	price real NOT NULL,
-	description char(400),
-	imageURL char(256),
+	itemName varchar(50) UNIQUE NOT NULL,
+	type varchar(20) NOT NULL,
+	price numeric(8,2) NOT NULL,
+	description varchar(400),
+	imageURL varchar(256),
 	PRIMARY KEY(itemName));
 
 CREATE TABLE Orders(
 	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	login varchar(50),
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
-	total real NOT NULL,
+	total numeric(10,2) NOT NULL,
+	version integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(orderid));
 
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	itemName varchar(50),
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
-	comments char(130), 
+	status item_status,
+	comments varchar(130),
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+
+CREATE TABLE FavItems(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE ON UPDATE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE ON UPDATE CASCADE);
+
+-- per user item ranking, kept up to date by the triggers in create_ranking.sql
+CREATE TABLE UserItemRank(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	timesOrdered integer NOT NULL DEFAULT 0,
+	favorite boolean NOT NULL DEFAULT false,
+	lastOrdered timestamp,
+	score integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE ON UPDATE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE ON UPDATE CASCADE);
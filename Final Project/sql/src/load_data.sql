@@ -2,14 +2,32 @@ COPY MENU
 FROM '/extra/ekana003/project/data/menu.csv'
 WITH DELIMITER ';';
 
-COPY USERS
+-- users.csv still carries the old comma separated favorites column
+CREATE TEMP TABLE UsersLoad(
+	login varchar(50),
+	phoneNum varchar(16),
+	password varchar(50),
+	favItems varchar(400),
+	type user_type);
+
+COPY USERSLOAD
 FROM '/extra/ekana003/project/data/users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+INSERT INTO Users (login, phoneNum, password, type)
+SELECT login, phoneNum, password, type FROM UsersLoad;
+
+INSERT INTO FavItems (login, itemName)
+SELECT DISTINCT u.login, m.itemName
+FROM UsersLoad u
+CROSS JOIN LATERAL regexp_split_to_table(u.favItems, ',') AS f(name)
+JOIN Menu m ON LOWER(m.itemName) = LOWER(TRIM(f.name));
+
+COPY ORDERS (orderid, login, paid, timeStampRecieved, total)
 FROM '/extra/ekana003/project/data/orders.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE orders_orderid_seq RESTART 87257;
+-- continue after the loaded ids, whatever data set was loaded
+SELECT setval('orders_orderid_seq', (SELECT MAX(orderid) FROM Orders));
 
 COPY ITEMSTATUS
 FROM '/extra/ekana003/project/data/itemStatus.csv'
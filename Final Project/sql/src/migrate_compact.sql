@@ -0,0 +1,50 @@
+-- Moves an existing database from the padded char/real layout to the
+-- compact layout in create_tables.sql. Safe to run once on loaded data.
+BEGIN;
+
+CREATE TYPE user_type AS ENUM ('Customer', 'Employee', 'Manager');
+CREATE TYPE item_status AS ENUM ('Hasn''t started', 'Started', 'Finished');
+
+-- the foreign keys have to go while both sides of them change type
+ALTER TABLE ItemStatus DROP CONSTRAINT itemstatus_itemname_fkey;
+
+ALTER TABLE Users
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN phoneNum TYPE varchar(16) USING rtrim(phoneNum),
+	ALTER COLUMN password TYPE varchar(50) USING rtrim(password),
+	ALTER COLUMN favItems TYPE varchar(400) USING rtrim(favItems),
+	ALTER COLUMN type TYPE user_type USING initcap(rtrim(type))::user_type;
+
+ALTER TABLE Menu
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN type TYPE varchar(20) USING rtrim(type),
+	ALTER COLUMN price TYPE numeric(8,2) USING round(price::numeric, 2),
+	ALTER COLUMN description TYPE varchar(400) USING rtrim(description),
+	ALTER COLUMN imageURL TYPE varchar(256) USING rtrim(imageURL);
+
+ALTER TABLE Orders
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN total TYPE numeric(10,2) USING round(total::numeric, 2);
+
+-- anything that is not a known state (the app used to write 'false')
+-- has not been started yet
+ALTER TABLE ItemStatus
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN comments TYPE varchar(130) USING rtrim(comments),
+	ALTER COLUMN status TYPE item_status USING
+		CASE lower(rtrim(status))
+			WHEN 'started' THEN 'Started'::item_status
+			WHEN 'finished' THEN 'Finished'::item_status
+			ELSE 'Hasn''t started'::item_status
+		END;
+
+ALTER TABLE ItemStatus ADD CONSTRAINT itemstatus_itemname_fkey
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName);
+
+COMMIT;
+
+-- ALTER TYPE rewrites every table, so give the planner fresh numbers
+VACUUM ANALYZE Users;
+VACUUM ANALYZE Menu;
+VACUUM ANALYZE Orders;
+VACUUM ANALYZE ItemStatus;
@@ -0,0 +1,36 @@
+-- Moves the free text Users.favItems list into the FavItems join table
+-- and adds the UserItemRank table. Run create_ranking.sql afterwards.
+BEGIN;
+
+CREATE TABLE FavItems(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE ON UPDATE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE ON UPDATE CASCADE);
+
+CREATE TABLE UserItemRank(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	timesOrdered integer NOT NULL DEFAULT 0,
+	favorite boolean NOT NULL DEFAULT false,
+	lastOrdered timestamp,
+	score integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE ON UPDATE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE ON UPDATE CASCADE);
+
+CREATE INDEX useritemrank_login_score
+ON UserItemRank
+( login, score DESC, lastOrdered DESC );
+
+-- names that are not on the menu are dropped
+INSERT INTO FavItems (login, itemName)
+SELECT DISTINCT u.login, m.itemName
+FROM Users u
+CROSS JOIN LATERAL regexp_split_to_table(u.favItems, ',') AS f(name)
+JOIN Menu m ON LOWER(m.itemName) = LOWER(TRIM(f.name));
+
+ALTER TABLE Users DROP COLUMN favItems;
+
+COMMIT;
@@ -0,0 +1,8 @@
+-- Adds the row version, bumped on every change of an order, and
+-- the index the kitchen claim query scans.
+ALTER TABLE Orders ADD COLUMN version integer NOT NULL DEFAULT 0;
+
+CREATE INDEX itemstatus_waiting
+ON ItemStatus
+( lastUpdated )
+WHERE status = 'Hasn''t started';
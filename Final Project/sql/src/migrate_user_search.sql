@@ -0,0 +1,18 @@
+-- Adds the indexes behind the user directory search to an existing database.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX users_login_prefix
+ON Users
+( LOWER(login) text_pattern_ops );
+
+CREATE INDEX users_phone_prefix
+ON Users
+( regexp_replace(phoneNum, '[^0-9]', '', 'g') text_pattern_ops );
+
+CREATE INDEX users_login_trgm
+ON Users
+USING GIN ( LOWER(login) gin_trgm_ops );
+
+CREATE INDEX users_phone_trgm
+ON Users
+USING GIN ( regexp_replace(phoneNum, '[^0-9]', '', 'g') gin_trgm_ops );
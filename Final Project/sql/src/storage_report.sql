@@ -0,0 +1,25 @@
+-- Table and index sizes plus a timed full scan of each table.
+-- Run before and after migrate_compact.sql to compare the two layouts.
+\timing on
+
+SELECT relname AS relation,
+	pg_size_pretty(pg_relation_size(oid)) AS heap,
+	pg_size_pretty(pg_indexes_size(oid)) AS indexes,
+	pg_size_pretty(pg_total_relation_size(oid)) AS total,
+	reltuples::bigint AS rows,
+	relpages AS pages,
+	CASE WHEN relpages > 0 THEN round(reltuples / relpages) END AS rows_per_page
+FROM pg_class
+WHERE relname IN ('users', 'menu', 'orders', 'itemstatus')
+ORDER BY relname;
+
+SELECT indexrelname AS index, pg_size_pretty(pg_relation_size(indexrelid)) AS size
+FROM pg_stat_user_indexes
+WHERE relname IN ('users', 'menu', 'orders', 'itemstatus')
+ORDER BY relname, indexrelname;
+
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM Users;
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM Menu;
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM Orders;
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM ItemStatus;
+EXPLAIN (ANALYZE, BUFFERS) SELECT login, SUM(total) FROM Orders GROUP BY login;